@@ -19,10 +19,188 @@ public abstract class AbstractReport<
 
     private PARENT parent;
 
+    /**
+     * Bit {@code m.ordinal()} is set when the {@link CoverageMetric} m is present.
+     */
+    private int metrics;
+
+    /**
+     * Numerator and denominator counts of each present metric, packed in metric order.
+     * Kept as one primitive array instead of a {@link Ratio} per metric, as a report
+     * can have millions of nodes.
+     */
+    private long[] counts = NO_COUNTS;
+
+    /**
+     * Fractional values, laid out like {@link #counts}. Only allocated when
+     * the report has non integer values.
+     */
+    private double[] fractions;
+
+    private static final long[] NO_COUNTS = new long[0];
+
     public void addCoverage(CoverageElement cv) throws IOException {
         cv.addTo(this);
     }
 
+    /**
+     * Gets a read-only copy of the ratio of the given metric, as the metrics are kept
+     * packed: changing it throws {@link UnsupportedOperationException}. The ratio is
+     * not initialized if the metric is not present.
+     */
+    @Override
+    public Ratio getCoverage(CoverageMetric m) {
+        if (!hasCoverage(m)) {
+            return new Ratio().readOnly();
+        }
+        int i = indexOf(m.ordinal());
+        if (fractions == null) {
+            return new Ratio(counts[i], counts[i + 1], 0, 0).readOnly();
+        }
+        return new Ratio(counts[i], counts[i + 1], fractions[i], fractions[i + 1]).readOnly();
+    }
+
+    @Override
+    public boolean hasCoverage(CoverageMetric m) {
+        return (metrics & (1 << m.ordinal())) != 0;
+    }
+
+    /**
+     * Adds a ratio to the given metric.
+     */
+    void addCoverage(CoverageMetric m, Ratio r) {
+        int i = slot(m);
+        counts[i] += r.getNumeratorCount();
+        counts[i + 1] += r.getDenominatorCount();
+        if (r.hasFraction()) {
+            addFraction(i, r.getNumeratorFraction(), r.getDenominatorFraction());
+        }
+    }
+
+    /**
+     * Gets the position of the given metric in {@link #counts}, making room for it if
+     * it is not present yet.
+     */
+    private int slot(CoverageMetric m) {
+        int bit = m.ordinal();
+        int i = indexOf(bit);
+        if ((metrics & (1 << bit)) == 0) {
+            counts = insertPair(counts, i);
+            if (fractions != null) {
+                fractions = insertPair(fractions, i);
+            }
+            metrics |= 1 << bit;
+        }
+        return i;
+    }
+
+    private void addFraction(int i, double numerator, double denominator) {
+        if (fractions == null) {
+            fractions = new double[counts.length];
+        }
+        fractions[i] += numerator;
+        fractions[i + 1] += denominator;
+    }
+
+    private static long[] insertPair(long[] a, int i) {
+        long[] v = new long[a.length + 2];
+        System.arraycopy(a, 0, v, 0, i);
+        System.arraycopy(a, i, v, i + 2, a.length - i);
+        return v;
+    }
+
+    private static double[] insertPair(double[] a, int i) {
+        double[] v = new double[a.length + 2];
+        System.arraycopy(a, 0, v, 0, i);
+        System.arraycopy(a, i, v, i + 2, a.length - i);
+        return v;
+    }
+
+    /**
+     * Position of the metric of the given ordinal in {@link #counts}:
+     * two slots for each present metric before it.
+     */
+    private int indexOf(int bit) {
+        return 2 * Integer.bitCount(metrics & ((1 << bit) - 1));
+    }
+
+    /**
+     * Bit mask of the present metrics, see {@link #getCounts()}.
+     */
+    int getMetricMask() {
+        return metrics;
+    }
+
+    /**
+     * Gets the packed numerator/denominator counts of the present metrics.
+     * Not a copy: do not modify.
+     */
+    long[] getCounts() {
+        return counts;
+    }
+
+    /**
+     * Gets the packed fractions of the present metrics, or null if there are none.
+     * Not a copy: do not modify.
+     */
+    double[] getFractions() {
+        return fractions;
+    }
+
+    /**
+     * Replaces the metrics of this node, as packed by {@link #getCounts()} and {@link #getFractions()}.
+     */
+    void setMetrics(int mask, long[] counts, double[] fractions) {
+        this.metrics = mask;
+        this.counts = counts;
+        this.fractions = fractions;
+    }
+
+    /**
+     * Rough heap size of this node alone, in bytes: the object, its name, its metrics
+     * and its entry in the parent.
+     */
+    long getEstimatedNodeSize() {
+        long s = NODE_OVERHEAD + 2L * (name == null ? 0 : name.length()) + 8L * counts.length;
+        if (fractions != null) {
+            s += ARRAY_OVERHEAD + 8L * fractions.length;
+        }
+        return s;
+    }
+
+    private static final long NODE_OVERHEAD = 160;
+    private static final long ARRAY_OVERHEAD = 16;
+
+    /**
+     * Merges the report of the same element coming from another file into this one.
+     */
+    void merge(SELF other) {
+        AbstractReport<?,?> o = (AbstractReport<?,?>) other;
+        if (o.metrics == metrics) {
+            // same metrics, the usual case: add the arrays
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += o.counts[i];
+            }
+            if (o.fractions != null) {
+                for (int i = 0; i < counts.length; i += 2) {
+                    addFraction(i, o.fractions[i], o.fractions[i + 1]);
+                }
+            }
+            return;
+        }
+        int j = 0;
+        for (CoverageMetric m : CoverageMetric.all()) {
+            if ((o.metrics & (1 << m.ordinal())) != 0) {
+                int i = slot(m);
+                counts[i] += o.counts[j];
+                counts[i + 1] += o.counts[j + 1];
+                if (o.fractions != null) {
+                    addFraction(i, o.fractions[j], o.fractions[j + 1]);
+                }
+                j += 2;
+            }
+        }
+    }
     public String getName() {
         return name;
     }
@@ -57,7 +235,7 @@ public abstract class AbstractReport<
             p = p.getPreviousResult();
             if(p==null)
                 return null;
-            SELF prev = (SELF)p.getChildren().get(name);
+            SELF prev = (SELF)p.getChild(name);
             if(prev!=null)
                 return prev;
         }
@@ -0,0 +1,464 @@
+package hudson.plugins.cocoemma;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.TaskListener;
+import hudson.remoting.Channel;
+import hudson.remoting.RemoteOutputStream;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Publishes the reports of a build in a single call to the agent: it looks for the
+ * reports in the workspace, hashes them, parses them into a {@link ReportSnapshot},
+ * and streams them back to the controller as one compressed archive. The reports are
+ * sent as the parser reads them, so each one is only read twice.
+ *
+ * <p>
+ * The reports already in the {@link ReportPool} of the job are not sent again, and
+ * when the reports are the same as those of the previous build, they are not parsed
+ * either: the controller reuses the snapshot of that build.
+ *
+ * <p>
+ * The reports are stored gzipped, see {@link ReportStorage}.
+ * Layout of the archive, gzipped:
+ * <pre>
+ * int file count, then for each file UTF name, UTF hash, boolean sent
+ * chunks of the files sent, in any order: int file index, int length, bytes
+ * int -1
+ * </pre>
+ */
+final class AgentReportCollector extends MasterToSlaveFileCallable<AgentReportCollector.Result> {
+
+    /**
+     * Names of the reports stored in the build folder.
+     */
+    static final Pattern NAME = Pattern.compile("coverage[0-9]*\\.xml");
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final String includes;
+
+    /**
+     * Where the reports are sent, null if they are not.
+     */
+    private final OutputStream archive;
+
+    /**
+     * Hashes of the reports of the previous build, in order, null if unknown.
+     */
+    private final String[] previous;
+
+    /**
+     * Hashes of the reports that are in the pool, which are not sent.
+     */
+    private final Set<String> pooled;
+
+    /**
+     * Whether the controller can reuse the snapshot of the previous build.
+     */
+    private final boolean reuse;
+
+    private final TaskListener listener;
+
+    AgentReportCollector(String includes, OutputStream archive, String[] previous, String[] pooled, boolean reuse,
+            TaskListener listener) {
+        this.includes = includes;
+        this.archive = archive;
+        this.previous = previous;
+        this.pooled = new HashSet<String>(Arrays.asList(pooled));
+        this.reuse = reuse;
+        this.listener = listener;
+    }
+
+    /**
+     * What the agent found.
+     */
+    static final class Result implements Serializable {
+        /**
+         * Paths of the reports in the workspace.
+         */
+        final String[] paths;
+        /**
+         * SHA-256 of each report, in hex.
+         */
+        final String[] hashes;
+        /**
+         * {@link ReportSnapshot} of the merged reports, null if there are none or
+         * they did not change.
+         */
+        final byte[] snapshot;
+        /**
+         * True if the reports are those of the previous build, and were not parsed.
+         */
+        final boolean unchanged;
+
+        Result(String[] paths, String[] hashes, byte[] snapshot, boolean unchanged) {
+            this.paths = paths;
+            this.hashes = hashes;
+            this.snapshot = snapshot;
+            this.unchanged = unchanged;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Name of the n-th report in the build folder.
+     */
+    static String nameOf(int i) {
+        return "coverage" + (i > 0 ? i : "") + ".xml";
+    }
+
+    public Result invoke(File workspace, VirtualChannel channel) throws IOException, InterruptedException {
+        FilePath[] reports = CocoEmmaPublisher.locateCoverageReports(new FilePath(workspace), includes, listener);
+        String[] paths = new String[reports.length];
+        String[] hashes = new String[reports.length];
+        for (int i = 0; i < reports.length; i++) {
+            paths[i] = reports[i].getRemote();
+            hashes[i] = hash(paths[i]);
+        }
+        boolean unchanged = paths.length > 0 && reuse && Arrays.equals(hashes, previous);
+        Archive out = archive != null ? new Archive(archive, paths, hashes) : null;
+        try {
+            byte[] snapshot = null;
+            if (paths.length > 0 && !unchanged) {
+                InputStream[] files = new InputStream[paths.length];
+                InputStream[] streams = new InputStream[paths.length];
+                try {
+                    for (int i = 0; i < paths.length; i++) {
+                        streams[i] = files[i] = new FileInputStream(paths[i]);
+                        if (out != null && out.sent[i]) {
+                            streams[i] = new BufferedInputStream(out.tee(i, files[i]), CHUNK_SIZE);
+                        }
+                    }
+                    snapshot = snapshot(streams);
+                    if (out != null) {
+                        out.finish();
+                    }
+                } finally {
+                    for (InputStream in : files) {
+                        if (in != null) {
+                            in.close();
+                        }
+                    }
+                }
+            } else if (out != null) {
+                out.finish();
+            }
+            return new Result(paths, hashes, snapshot, unchanged);
+        } finally {
+            if (out != null) {
+                out.close();
+            }
+        }
+    }
+
+    private static String hash(String path) throws IOException {
+        MessageDigest digest = ReportPool.sha256();
+        byte[] buf = new byte[CHUNK_SIZE];
+        InputStream in = new FileInputStream(path);
+        try {
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                digest.update(buf, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        return Util.toHexString(digest.digest());
+    }
+
+    /**
+     * Parses and merges the reports, and writes the snapshot of the tree. The tree is
+     * built without a {@link CocoEmmaBuildAction}, and the {@link Rule}s are enforced
+     * on the controller, once the snapshot is read.
+     */
+    static byte[] snapshot(InputStream... streams) throws IOException {
+        CoverageReport r = new CoverageReport(null, streams);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ReportSnapshot.write(r, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * The archive being written.
+     */
+    private final class Archive {
+        private final DataOutputStream out;
+        private final String[] paths;
+        /**
+         * Whether each report is sent, and not taken from the pool.
+         */
+        final boolean[] sent;
+        private final Tee[] tees;
+
+        Archive(OutputStream archive, String[] paths, String[] hashes) throws IOException {
+            this.out = new DataOutputStream(new GZIPOutputStream(archive, CHUNK_SIZE));
+            this.paths = paths;
+            this.sent = new boolean[paths.length];
+            this.tees = new Tee[paths.length];
+            out.writeInt(paths.length);
+            for (int i = 0; i < paths.length; i++) {
+                sent[i] = !pooled.contains(hashes[i]);
+                out.writeUTF(nameOf(i));
+                out.writeUTF(hashes[i]);
+                out.writeBoolean(sent[i]);
+            }
+        }
+
+        /**
+         * Sends the report as it is read.
+         */
+        InputStream tee(int i, InputStream in) {
+            return tees[i] = new Tee(i, in);
+        }
+
+        synchronized void write(int i, byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int n = Math.min(len, CHUNK_SIZE);
+                out.writeInt(i);
+                out.writeInt(n);
+                out.write(b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        /**
+         * Sends what the parser did not read of the reports.
+         */
+        void finish() throws IOException {
+            byte[] buf = new byte[CHUNK_SIZE];
+            for (int i = 0; i < paths.length; i++) {
+                if (!sent[i]) {
+                    continue;
+                }
+                if (tees[i] != null) {
+                    drain(tees[i], buf);
+                    continue;
+                }
+                InputStream in = new FileInputStream(paths[i]);
+                try {
+                    drain(new Tee(i, in), buf);
+                } finally {
+                    in.close();
+                }
+            }
+            out.writeInt(-1);
+        }
+
+        private void drain(InputStream in, byte[] buf) throws IOException {
+            while (in.read(buf) >= 0) {
+                // sent by the tee
+            }
+        }
+
+        void close() throws IOException {
+            out.close();
+        }
+
+        /**
+         * Copies what is read of a report to the archive.
+         */
+        private final class Tee extends FilterInputStream {
+            private final int index;
+
+            Tee(int index, InputStream in) {
+                super(in);
+                this.index = index;
+            }
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) > 0 ? b[0] & 0xff : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = in.read(b, off, len);
+                if (n > 0) {
+                    write(index, b, off, n);
+                }
+                return n;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                byte[] b = new byte[(int) Math.min(n, CHUNK_SIZE)];
+                int read = read(b, 0, b.length);
+                return Math.max(read, 0);
+            }
+
+            @Override
+            public boolean markSupported() {
+                return false;
+            }
+
+            /**
+             * Kept open until the rest of the report is sent, the file is closed by
+             * {@link AgentReportCollector#invoke}.
+             */
+            @Override
+            public void close() {
+            }
+        }
+    }
+
+    /**
+     * Collects the reports of the workspace.
+     *
+     * @param folder
+     *      where the reports are stored, null if they are not copied from the agent.
+     * @param pool
+     *      the {@link ReportPool} of the job, null to store the reports in the folder only.
+     * @param previous
+     *      the hashes of the reports of the previous build, null if unknown.
+     * @param reuse
+     *      whether the snapshot of the previous build can be reused if the reports are the same.
+     * @param listener
+     *      where the failures to look for the reports are logged.
+     */
+    static Result collect(FilePath workspace, String includes, File folder, File pool, String[] previous, boolean reuse,
+            TaskListener listener) throws IOException, InterruptedException {
+        String[] pooled = folder == null ? new String[0] : ReportPool.pooled(pool, previous);
+        if (folder == null) {
+            return workspace.act(new AgentReportCollector(includes, null, previous, pooled, reuse, listener));
+        }
+        File tmp = new File(folder.getParentFile(), folder.getName() + "-reports.tmp");
+        try {
+            OutputStream sink = new FileOutputStream(tmp);
+            Result r;
+            try {
+                r = workspace.act(new AgentReportCollector(includes, new RemoteOutputStream(sink), previous, pooled, reuse,
+                        listener));
+                VirtualChannel channel = workspace.getChannel();
+                if (channel instanceof Channel) {
+                    // make sure all the archive is written before reading it
+                    ((Channel) channel).syncLocalIO();
+                }
+            } finally {
+                sink.close();
+            }
+            extract(tmp, folder, pool, r.hashes);
+            return r;
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Stores the reports of an archive in the folder, through the pool if any.
+     */
+    static void extract(File archive, File folder, File pool, String[] hashes) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(archive))));
+        File[] tmps = new File[hashes.length];
+        OutputStream[] outs = new OutputStream[hashes.length];
+        try {
+            int count = in.readInt();
+            if (count != hashes.length) {
+                throw new IOException("Expected " + hashes.length + " reports from the agent, got " + count);
+            }
+            if (count > 0 && !folder.isDirectory() && !folder.mkdirs()) {
+                throw new IOException("Failed to create " + folder);
+            }
+            if (count > 0 && pool != null && !pool.isDirectory() && !pool.mkdirs()) {
+                throw new IOException("Failed to create " + pool);
+            }
+            String[] names = new String[count];
+            MessageDigest[] digests = new MessageDigest[count];
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                String hash = in.readUTF();
+                // the names come from the agent, so only take the expected ones
+                if (!NAME.matcher(name).matches() || !hash.equals(hashes[i]) || !ReportPool.HASH.matcher(hash).matches()) {
+                    throw new IOException("Unexpected report from the agent: " + name + " " + hash);
+                }
+                names[i] = name;
+                if (!in.readBoolean()) {
+                    if (pool == null) {
+                        throw new IOException("Report not sent by the agent: " + name);
+                    }
+                    continue;
+                }
+                // concurrent builds of the job share the pool, so the name must be unique
+                tmps[i] = File.createTempFile(name, ".tmp", pool != null ? pool : folder);
+                outs[i] = new GZIPOutputStream(new FileOutputStream(tmps[i]), CHUNK_SIZE);
+                digests[i] = ReportPool.sha256();
+            }
+
+            byte[] buf = new byte[CHUNK_SIZE];
+            int i;
+            while ((i = in.readInt()) != -1) {
+                if (i < 0 || i >= count || outs[i] == null) {
+                    throw new IOException("Corrupted report archive");
+                }
+                int n = in.readInt();
+                if (n <= 0 || n > buf.length) {
+                    throw new IOException("Corrupted report archive");
+                }
+                in.readFully(buf, 0, n);
+                digests[i].update(buf, 0, n);
+                outs[i].write(buf, 0, n);
+            }
+
+            for (i = 0; i < count; i++) {
+                File target = new File(folder, names[i] + ReportStorage.GZ);
+                if (tmps[i] == null) {
+                    ReportPool.link(pool, hashes[i], target);
+                    continue;
+                }
+                outs[i].close();
+                if (!Util.toHexString(digests[i].digest()).equals(hashes[i])) {
+                    throw new IOException("Hash mismatch for the report " + names[i] + " sent by the agent");
+                }
+                File tmp = tmps[i];
+                tmps[i] = null;
+                if (pool != null) {
+                    ReportPool.add(pool, hashes[i], tmp);
+                    ReportPool.link(pool, hashes[i], target);
+                } else {
+                    Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        } catch (EOFException e) {
+            throw new IOException("Truncated report archive", e);
+        } finally {
+            in.close();
+            for (int i = 0; i < outs.length; i++) {
+                if (outs[i] != null) {
+                    outs[i].close();
+                }
+                if (tmps[i] != null) {
+                    tmps[i].delete();
+                }
+            }
+        }
+    }
+
+    private static final long serialVersionUID = 1L;
+}
@@ -18,16 +18,108 @@ public abstract class AggregatedReport<PARENT extends AggregatedReport<?,PARENT,
 
     private final Map<String, CHILD> children = new TreeMap<String, CHILD>();
 
+    /**
+     * Snapshot from which the children not created yet are read,
+     * null once all the children exist.
+     */
+    private volatile ReportIndex index;
+
+    /**
+     * Position of this node in {@link #index}.
+     */
+    private int indexNode;
+
+    /**
+     * Backs the children of this node by a snapshot.
+     */
+    void setIndex(ReportIndex index, int node) {
+        this.indexNode = node;
+        this.index = index;
+    }
+
+    /**
+     * Adds a child. Within a report file, a child with the same name, such as an
+     * overloaded method, replaces the existing one.
+     */
     public void add(CHILD child) {
+        loadChildren();
         children.put(child.getName(),child);
-        if ( this.hasClassCoverage() )
-            return ;
+    }
+
+    /**
+     * Children with the same name, such as the same package found in several
+     * report files, are merged.
+     */
+    @Override
+    void merge(SELF other) {
+        super.merge(other);
+        loadChildren();
+        for (CHILD c : other.getChildren().values()) {
+            CHILD existing = children.get(c.getName());
+            if (existing == null) {
+                attach(c);
+            } else {
+                existing.merge(c);
+            }
+        }
     }
 
     public Map<String,CHILD> getChildren() {
+        loadChildren();
         return children;
     }
 
+    /**
+     * Gets a child by name. Unlike {@link #getChildren()}, this only creates the
+     * requested child when the node is backed by a snapshot.
+     */
+    @SuppressWarnings("unchecked")
+    CHILD getChild(String name) {
+        if (index == null) {
+            return children.get(name);
+        }
+        synchronized (this) {
+            CHILD c = children.get(name);
+            if (c == null && index != null) {
+                int i = index.findChild(indexNode, name);
+                if (i >= 0) {
+                    c = (CHILD) index.createNode(i);
+                    attach(c);
+                }
+            }
+            return c;
+        }
+    }
+
+    /**
+     * Creates the children not created yet from the snapshot.
+     */
+    @SuppressWarnings("unchecked")
+    private void loadChildren() {
+        if (index == null) {
+            return;
+        }
+        synchronized (this) {
+            ReportIndex idx = index;
+            if (idx == null) {
+                return;
+            }
+            int first = idx.getFirstChild(indexNode);
+            int count = idx.getChildCount(indexNode);
+            for (int i = first; i < first + count; i++) {
+                if (!children.containsKey(idx.getName(i))) {
+                    attach((CHILD) idx.createNode(i));
+                }
+            }
+            index = null;
+        }
+    }
+
+    private void attach(CHILD c) {
+        children.put(c.getName(), c);
+        c.setParent((SELF)this);
+    }
+
     protected void setParent(PARENT p) {
         super.setParent(p);
         for (CHILD c : children.values())
@@ -35,7 +127,7 @@ public abstract class AggregatedReport<PARENT extends AggregatedReport<?,PARENT,
     }
 
     public CHILD getDynamic(String token, StaplerRequest req, StaplerResponse rsp ) throws IOException {
-        return getChildren().get(token);
+        return getChild(token);
     }
     
     @Override
@@ -50,60 +142,37 @@ public abstract class AggregatedReport<PARENT extends AggregatedReport<?,PARENT,
     	return getChildren().size() > 0;
     }
 
-    public boolean hasChildrenLineCoverage() {
+    public boolean hasChildrenCoverage(CoverageMetric m) {
     	for (CHILD child : getChildren().values()){
-    		if (child.hasLineCoverage()) {
+    		if (child.hasCoverage(m)) {
     			return true;
     		}
     	}
         return false;
     }
 
-    public boolean hasChildrenClassCoverage() {
-    	for (CHILD child : getChildren().values()){
-    		if (child.hasClassCoverage()) {
-    			return true;
-    		}
-    	}
-        return false;
+    public boolean hasChildrenLineCoverage() {
+        return hasChildrenCoverage(CoverageMetric.LINE);
     }
 
+    public boolean hasChildrenClassCoverage() {
+        return hasChildrenCoverage(CoverageMetric.CLASS);
+    }
 
     public boolean hasChildrenDecisionCoverage() {
-    	for (CHILD child : getChildren().values()){
-    		if (child.hasDecisionCoverage()) {
-    			return true;
-    		}
-    	}
-        return false;
+        return hasChildrenCoverage(CoverageMetric.DECISION);
     }
 
-
     public boolean hasChildrenConditionCoverage() {
-    	for (CHILD child : getChildren().values()){
-    		if (child.hasConditionCoverage()) {
-    			return true;
-    		}
-    	}
-        return false;
+        return hasChildrenCoverage(CoverageMetric.CONDITION);
     }
 
     public boolean hasChildrenMcDcCoverage() {
-    	for (CHILD child : getChildren().values()){
-    		if (child.hasMcDcCoverage()) {
-    			return true;
-    		}
-    	}
-        return false;
+        return hasChildrenCoverage(CoverageMetric.MCDC);
     }
 
     public boolean hasChildrenMccCoverage() {
-    	for (CHILD child : getChildren().values()){
-    		if (child.hasMccCoverage()) {
-    			return true;
-    		}
-    	}
-        return false;
+        return hasChildrenCoverage(CoverageMetric.MCC);
     }
 
 }
@@ -6,6 +6,7 @@ import hudson.model.HealthReport;
 import hudson.model.HealthReportingAction;
 import hudson.model.Result;
 import hudson.model.Run;
+import hudson.model.TaskListener;
 import hudson.util.NullStream;
 import hudson.util.StreamTaskListener;
 import jenkins.model.RunAction2;
@@ -19,8 +20,9 @@ import org.xmlpull.v1.XmlPullParserFactory;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -35,7 +37,17 @@ public final class CocoEmmaBuildAction extends CoverageObject<CocoEmmaBuildActio
 	
     public transient Run<?,?> owner;
 
-    private transient WeakReference<CoverageReport> report;
+    /**
+     * Overall ratios of the build, persisted in build.xml. Null if a metric is not collected.
+     */
+    Ratio clazz;
+    Ratio method;
+    Ratio block;
+    Ratio line;
+    Ratio decision;
+    Ratio condition;
+    Ratio mcdc;
+    Ratio mcc;
 
     /**
      * Non-null if the coverage has pass/fail rules.
@@ -74,6 +86,35 @@ public final class CocoEmmaBuildAction extends CoverageObject<CocoEmmaBuildActio
         this.thresholds = thresholds;
     }
 
+    @Override
+    public Ratio getCoverage(CoverageMetric m) {
+        switch (m) {
+        case CLASS:     return clazz;
+        case METHOD:    return method;
+        case BLOCK:     return block;
+        case LINE:      return line;
+        case DECISION:  return decision;
+        case CONDITION: return condition;
+        case MCDC:      return mcdc;
+        case MCC:       return mcc;
+        default:        throw new AssertionError("Unknown metric " + m);
+        }
+    }
+
+    private void setCoverage(CoverageMetric m, Ratio r) {
+        switch (m) {
+        case CLASS:     clazz = r; break;
+        case METHOD:    method = r; break;
+        case BLOCK:     block = r; break;
+        case LINE:      line = r; break;
+        case DECISION:  decision = r; break;
+        case CONDITION: condition = r; break;
+        case MCDC:      mcdc = r; break;
+        case MCC:       mcc = r; break;
+        default:        throw new AssertionError("Unknown metric " + m);
+        }
+    }
+
     public String getDisplayName() {
         return Messages.BuildAction_DisplayName();
     }
@@ -100,69 +141,17 @@ public final class CocoEmmaBuildAction extends CoverageObject<CocoEmmaBuildActio
         thresholds.ensureValid();
         int score = 100, percent;
         ArrayList<Localizable> reports = new ArrayList<Localizable>(5);
-        if (clazz != null && thresholds.getMaxClass() > 0) {
-            percent = clazz.getPercentage(getTestNotMandatory());
-            if (percent < thresholds.getMaxClass()) {
-                reports.add(Messages._BuildAction_Classes(clazz, percent));
-            }
-            score = updateHealthScore(score, thresholds.getMinClass(),
-                                      percent, thresholds.getMaxClass());
-        }
-        if (method != null && thresholds.getMaxMethod() > 0) {
-            percent = method.getPercentage(getTestNotMandatory());
-            if (percent < thresholds.getMaxMethod()) {
-                reports.add(Messages._BuildAction_Methods(method, percent));
-            }
-            score = updateHealthScore(score, thresholds.getMinMethod(),
-                                      percent, thresholds.getMaxMethod());
-        }
-        if (block != null && thresholds.getMaxBlock() > 0) {
-            percent = block.getPercentage(getTestNotMandatory());
-            if (percent < thresholds.getMaxBlock()) {
-                reports.add(Messages._BuildAction_Blocks(block, percent));
-            }
-            score = updateHealthScore(score, thresholds.getMinBlock(),
-                                      percent, thresholds.getMaxBlock());
-        }
-        if (line != null && thresholds.getMaxLine() > 0) {
-            percent = line.getPercentage(getTestNotMandatory());
-            if (percent < thresholds.getMaxLine()) {
-                reports.add(Messages._BuildAction_Lines(line, percent));
-            }
-            score = updateHealthScore(score, thresholds.getMinLine(),
-                                      percent, thresholds.getMaxLine());
-        }
-        if (decision != null && thresholds.getMaxDecision() > 0) {
-            percent = decision.getPercentage(getTestNotMandatory());
-            if (percent < thresholds.getMaxDecision()) {
-                reports.add(Messages._BuildAction_Decision(decision, percent));
-            }
-            score = updateHealthScore(score, thresholds.getMinDecision(),
-                                      percent, thresholds.getMaxDecision());
-        }
-        if (condition != null && thresholds.getMaxCondition() > 0) {
-            percent = condition.getPercentage(getTestNotMandatory());
-            if (percent < thresholds.getMaxCondition()) {
-                reports.add(Messages._BuildAction_Conditions(condition, percent));
-            }
-            score = updateHealthScore(score, thresholds.getMinCondition(),
-                                      percent, thresholds.getMaxCondition());
-        }
-        if (mcdc != null && thresholds.getMaxMcDc() > 0) {
-            percent = mcdc.getPercentage(getTestNotMandatory());
-            if (percent < thresholds.getMaxMcDc()) {
-                reports.add(Messages._BuildAction_Mcdc(mcdc, percent));
-            }
-            score = updateHealthScore(score, thresholds.getMinMcDc(),
-                                      percent, thresholds.getMaxMcDc());
-        }
-        if (mcc != null && thresholds.getMaxMcc() > 0) {
-            percent = mcc.getPercentage(getTestNotMandatory());
-            if (percent < thresholds.getMaxMcc()) {
-                reports.add(Messages._BuildAction_Mcc(mcc, percent));
+        for (CoverageMetric m : CoverageMetric.all()) {
+            Ratio r = getCoverage(m);
+            int max = m.getMaxThreshold(thresholds);
+            if (r != null && max > 0) {
+                percent = r.getPercentage(getTestNotMandatory());
+                if (percent < max) {
+                    reports.add(m.getHealthMessage(r, percent));
+                }
+                score = updateHealthScore(score, m.getMinThreshold(thresholds),
+                                          percent, max);
             }
-            score = updateHealthScore(score, thresholds.getMinMcc(),
-                                      percent, thresholds.getMaxMcc());
         }
         if (score == 100) {
             reports.add(Messages._BuildAction_Perfect());
@@ -189,8 +178,23 @@ public final class CocoEmmaBuildAction extends CoverageObject<CocoEmmaBuildActio
         return score;
     }
 
+    /**
+     * Shows the report, or a page saying that it is being loaded if that takes
+     * more than {@link ReportLoader#PAGE_WAIT}.
+     */
     public Object getTarget() {
-        return getResult();
+        if (owner != null) {
+            ReportWarmer.viewed(owner.getParent());
+        }
+        CoverageReport r = ReportCache.get().get(this);
+        if (r != null) {
+            return r;
+        }
+        r = ReportLoader.get(this, ReportLoader.PAGE_WAIT, TimeUnit.MILLISECONDS);
+        if (r == null && ReportLoader.isLoading(this)) {
+            return new ReportLoading(this);
+        }
+        return r;
     }
 
     @Override
@@ -201,7 +205,7 @@ public final class CocoEmmaBuildAction extends CoverageObject<CocoEmmaBuildActio
 	protected static FilePath[] getEmmaReports(File file) throws IOException, InterruptedException {
 		FilePath path = new FilePath(file);
 		if (path.isDirectory()) {
-			return path.list("*xml");
+			return ReportStorage.list(file);
 		} else {
 			// Read old builds (before 1.11) 
 			FilePath report = new FilePath(new File(path.getName() + ".xml"));
@@ -215,35 +219,43 @@ public final class CocoEmmaBuildAction extends CoverageObject<CocoEmmaBuildActio
 
     /**
      * Obtains the detailed {@link CoverageReport} instance.
+     *
+     * <p>
+     * Loaded reports are kept in the {@link ReportCache}. Otherwise the report is
+     * loaded by the {@link ReportLoader}, once for all the concurrent callers, and
+     * this waits for it. Only the pages, through {@link #getTarget()}, stop waiting.
+     *
+     * @return
+     *      null if the report could not be loaded.
      */
-    public synchronized CoverageReport getResult() {
-
-        if(report!=null) {
-            final CoverageReport r = report.get();
-            if(r!=null)     return r;
+    public CoverageReport getResult() {
+        CoverageReport cached = ReportCache.get().get(this);
+        if (cached != null) {
+            return cached;
         }
+        return ReportLoader.get(this);
+    }
 
+    /**
+     * Reads or parses the report and puts it in the {@link ReportCache}.
+     * Only called by the {@link ReportLoader}.
+     */
+    CoverageReport loadResult() {
         final File reportFolder = getCocoEmmaReport();
 
         try {
         	
         	// Get the list of report files stored for this build
             FilePath[] reports = getEmmaReports(reportFolder);
-            InputStream[] streams = new InputStream[reports.length];
-            for (int i=0; i<reports.length; i++) {
-            	streams[i] = reports[i].read();
-            }
             
-            // Generate the report
-            CoverageReport r = new CoverageReport(this, streams);
-
-            if(rule!=null) {
-                // we change the report so that the FAILED flag is set correctly
-                logger.info("calculating failed packages based on " + rule);
-                rule.enforce(r,new StreamTaskListener(new NullStream()));
+            // Reuse the snapshot of the tree if any, or generate the report
+            CoverageReport r = readSnapshot(new File(reportFolder, ReportSnapshot.FILE_NAME), reports);
+            if (r == null) {
+                r = loadReport(reports, new StreamTaskListener(new NullStream()));
+                writeSnapshot(r);
             }
 
-            report = new WeakReference<CoverageReport>(r);
+            ReportCache.get().put(this, r);
             return r;
         } catch (InterruptedException e) {
             logger.log(Level.WARNING, "Failed to load " + reportFolder, e);
@@ -254,6 +266,84 @@ public final class CocoEmmaBuildAction extends CoverageObject<CocoEmmaBuildActio
         }
     }
 
+    /**
+     * Reads the snapshot of the report tree, unless it is missing or older than the reports.
+     *
+     * @return
+     *      null if the reports must be parsed.
+     */
+    private CoverageReport readSnapshot(File snapshot, FilePath[] reports) throws IOException, InterruptedException {
+        if (!ReportSnapshot.isUpToDate(snapshot, reports)) {
+            return null;
+        }
+        try {
+            return ReportSnapshot.read(this, snapshot);
+        } catch (IOException e) {
+            logger.log(Level.INFO, "Ignoring the coverage report snapshot " + snapshot, e);
+            return null;
+        }
+    }
+
+    /**
+     * Stores the snapshot of the report tree in the build folder.
+     * A failure is only logged, as the report can still be parsed from the XML files.
+     */
+    void writeSnapshot(CoverageReport r) {
+        File folder = getCocoEmmaReport();
+        if (!folder.isDirectory()) {
+            return;
+        }
+        try {
+            ReportSnapshot.write(r, new File(folder, ReportSnapshot.FILE_NAME));
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to write the coverage report snapshot in " + folder, e);
+        }
+    }
+
+    /**
+     * Like {@link #writeSnapshot(CoverageReport)}, from the snapshot sent by the agent,
+     * without creating the nodes of the tree.
+     */
+    void writeSnapshot(byte[] snapshot) {
+        File folder = getCocoEmmaReport();
+        if (!folder.isDirectory()) {
+            return;
+        }
+        try {
+            ReportSnapshot.write(snapshot, new File(folder, ReportSnapshot.FILE_NAME));
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to write the coverage report snapshot in " + folder, e);
+        }
+    }
+
+    /**
+     * Parses the given report files into a {@link CoverageReport} of this build
+     * and marks the failed nodes according to the {@link Rule}.
+     */
+    private CoverageReport loadReport(FilePath[] reports, TaskListener listener) throws IOException, InterruptedException {
+        InputStream[] streams = new InputStream[reports.length];
+        try {
+            for (int i=0; i<reports.length; i++) {
+                streams[i] = ReportStorage.open(reports[i]);
+            }
+
+            CoverageReport r = new CoverageReport(this, streams);
+
+            if(rule!=null) {
+                // we change the report so that the FAILED flag is set correctly
+                logger.info("calculating failed packages based on " + rule);
+                rule.enforce(r,listener);
+            }
+            return r;
+        } finally {
+            for (InputStream in : streams) {
+                if (in != null) {
+                    in.close();
+                }
+            }
+        }
+    }
+
     @Override
     public CocoEmmaBuildAction getPreviousResult() {
         return getPreviousResult(owner);
@@ -283,11 +373,18 @@ public final class CocoEmmaBuildAction extends CoverageObject<CocoEmmaBuildActio
      * @throws IOException
      *      if failed to parse the file.
      */
+    /**
+     * Whether the report of this build had rules, which marked its failed nodes.
+     */
+    boolean hasRule() {
+        return rule != null;
+    }
+
     public static CocoEmmaBuildAction load(AbstractBuild<?,?> owner, Rule rule, EmmaHealthReportThresholds thresholds, FilePath... files) throws IOException {
         Ratio ratios[] = null;
         for (FilePath f : files) {
             try {
-                InputStream in = f.read();
+                InputStream in = ReportStorage.open(f);
                 try {
                     ratios = loadRatios(in, ratios);
                 } catch (XmlPullParserException e) {
@@ -302,6 +399,88 @@ public final class CocoEmmaBuildAction extends CoverageObject<CocoEmmaBuildActio
         return new CocoEmmaBuildAction(owner,rule,ratios[0],ratios[1],ratios[2],ratios[3],ratios[4],ratios[5],ratios[6],ratios[7],thresholds);
     }
 
+    /**
+     * Constructs the object together with its detailed {@link CoverageReport},
+     * reading each report file only once.
+     *
+     * <p>
+     * The overall ratios are taken from the root of the report tree, the {@link Rule}
+     * is enforced on the same tree, and the tree is kept as the cached result of the
+     * action, so that publishing does not parse the reports a second time.
+     *
+     * @return
+     *      the detailed report; the new action is available from {@link CoverageReport#getAction()}.
+     * @throws IOException
+     *      if failed to parse the files.
+     */
+    public static CoverageReport loadReport(AbstractBuild<?,?> owner, Rule rule, EmmaHealthReportThresholds thresholds,
+            AdvancedSettings settings, TaskListener listener, FilePath... files) throws IOException, InterruptedException {
+        CocoEmmaBuildAction action = new CocoEmmaBuildAction(owner,rule,null,null,null,null,null,null,null,null,thresholds);
+        action.applySettings(settings);
+
+        CoverageReport r = action.loadReport(files, listener);
+        return action.summarize(r);
+    }
+
+    /**
+     * Like {@link #loadReport(AbstractBuild, Rule, EmmaHealthReportThresholds, AdvancedSettings, TaskListener, FilePath...)},
+     * from the snapshot of the tree sent by an {@link AgentReportCollector}.
+     */
+    static CoverageReport loadReport(AbstractBuild<?,?> owner, Rule rule, EmmaHealthReportThresholds thresholds,
+            AdvancedSettings settings, TaskListener listener, byte[] snapshot) throws IOException {
+        CocoEmmaBuildAction action = new CocoEmmaBuildAction(owner,rule,null,null,null,null,null,null,null,null,thresholds);
+        action.applySettings(settings);
+
+        CoverageReport r = ReportSnapshot.read(action, ByteBuffer.wrap(snapshot));
+        if(rule!=null) {
+            logger.info("calculating failed packages based on " + rule);
+            rule.enforce(r,listener);
+        }
+        return action.summarize(r);
+    }
+
+    /**
+     * Like {@link #loadReport(AbstractBuild, Rule, EmmaHealthReportThresholds, AdvancedSettings, TaskListener, FilePath...)},
+     * from the snapshot of a previous build with the same reports, which is linked in
+     * the folder of this build.
+     */
+    static CoverageReport loadReport(AbstractBuild<?,?> owner, Rule rule, EmmaHealthReportThresholds thresholds,
+            AdvancedSettings settings, TaskListener listener, File previous) throws IOException {
+        CocoEmmaBuildAction action = new CocoEmmaBuildAction(owner,rule,null,null,null,null,null,null,null,null,thresholds);
+        action.applySettings(settings);
+
+        File snapshot = new File(action.getCocoEmmaReport(), ReportSnapshot.FILE_NAME);
+        ReportPool.linkOrCopy(previous, snapshot);
+        // newer than the reports of this build, which may have been linked after it was written
+        snapshot.setLastModified(System.currentTimeMillis());
+
+        CoverageReport r = ReportSnapshot.read(action, snapshot);
+        if(rule!=null) {
+            logger.info("calculating failed packages based on " + rule);
+            rule.enforce(r,listener);
+        }
+        return action.summarize(r);
+    }
+
+    /**
+     * Takes the overall ratios from the root of the report, and caches it.
+     */
+    private CoverageReport summarize(CoverageReport r) {
+        for (CoverageMetric m : CoverageMetric.all()) {
+            setCoverage(m, summary(r.getCoverage(m)));
+        }
+
+        ReportCache.get().put(this, r);
+        return r;
+    }
+
+    /**
+     * Like {@link #loadRatios}, metrics missing from the reports are left null.
+     */
+    private static Ratio summary(Ratio r) {
+        return r.isInitialized() ? r : null;
+    }
+
     public static CocoEmmaBuildAction load(AbstractBuild<?,?> owner, Rule rule, EmmaHealthReportThresholds thresholds, InputStream... streams) throws IOException, XmlPullParserException {
         Ratio ratios[] = null;
         for (InputStream in: streams) {
@@ -326,8 +505,8 @@ public final class CocoEmmaBuildAction extends CoverageObject<CocoEmmaBuildActio
             break;
         }
 
-        if (r == null || r.length < 8) 
-            r = new Ratio[8];
+        if (r == null || r.length < CoverageMetric.count()) 
+            r = new Ratio[CoverageMetric.count()];
         
         // head for the first <coverage> tag.
         for( int i=0; i<r.length; i++ ) {
@@ -338,27 +517,11 @@ public final class CocoEmmaBuildAction extends CoverageObject<CocoEmmaBuildActio
             String v = parser.getAttributeValue("", "value");
             String t = parser.getAttributeValue("", "type");
             
-            int index ;
-            if ( t.equals("class, %") )
-                index = 0;
-            else if (t.equals("method, %"))
-                index = 1;
-            else if ( t.equals("block, %"))
-                index = 2;
-            else if ( t.equals("line, %") )
-                index = 3;
-            else if ( t.equals("decision, %") )
-                index = 4;
-            else if ( t.equals("condition, %") )
-                index = 5;
-            else if ( t.equals("mcdc, %") )
-                index = 6;
-            else if ( t.equals("mcc, %") )
-                index = 7;
-            else
+            CoverageMetric m = CoverageMetric.forType(t);
+            if (m == null)
                 continue;
-                
-            
+            int index = m.ordinal();
+
             if (r[index] == null) {
                 r[index] = Ratio.parseValue(v);
             } else {
@@ -1,9 +1,7 @@
 package hudson.plugins.cocoemma;
 
-import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.Action;
-import hudson.model.Result;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
 
@@ -35,20 +33,22 @@ public final class CocoEmmaProjectAction implements Action {
 
     /**
      * Gets the most recent {@link CocoEmmaBuildAction} object.
+     *
+     * @see LastResults
      */
     public CocoEmmaBuildAction getLastResult() {
-        for( AbstractBuild<?,?> b = project.getLastBuild(); b!=null; b=b.getPreviousBuild()) {
-            if(b.getResult()== Result.FAILURE)
-                continue;
-            CocoEmmaBuildAction r = b.getAction(CocoEmmaBuildAction.class);
-            if(r!=null)
-                return r;
-        }
-        return null;
+        return LastResults.get(project);
     }
 
     public void doGraph(StaplerRequest req, StaplerResponse rsp) throws IOException {
-       if (getLastResult() != null)
-          getLastResult().doGraph(req,rsp);
+       CocoEmmaBuildAction a = getLastResult();
+       if (a != null)
+          a.doGraph(req,rsp);
+    }
+
+    public void doTrendJson(StaplerRequest req, StaplerResponse rsp) throws IOException {
+       CocoEmmaBuildAction a = getLastResult();
+       if (a != null)
+          a.doTrendJson(req,rsp);
     }
 }
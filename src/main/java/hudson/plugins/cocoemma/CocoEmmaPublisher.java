@@ -16,6 +16,7 @@ import hudson.model.BuildListener;
 import hudson.model.Items;
 import hudson.model.Result;
 import hudson.model.Run;
+import hudson.model.TaskListener;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.BuildStepMonitor;
 import hudson.tasks.Publisher;
@@ -45,6 +46,12 @@ public class CocoEmmaPublisher extends Recorder {
     
     public boolean useThreshold;
 
+    /**
+     * Only keep the parsed tree of the reports in the build folder, not the XML
+     * reports themselves, which are then not copied from the agent.
+     */
+    public boolean discardXmlReports;
+
     /**
      * Rule to be enforced. Can be null.
      *
@@ -66,7 +73,8 @@ public class CocoEmmaPublisher extends Recorder {
      * look for emma reports based in the configured parameter includes. 'includes' is - an Ant-style pattern - a list
      * of files and folders separated by the characters ;:,
      */
-    protected static FilePath[] locateCoverageReports(FilePath workspace, String includes) throws IOException, InterruptedException {
+    protected static FilePath[] locateCoverageReports(FilePath workspace, String includes, TaskListener listener)
+            throws IOException, InterruptedException {
 
         // First use ant-style pattern
         try {
@@ -75,6 +83,8 @@ public class CocoEmmaPublisher extends Recorder {
                 return ret;
             }
         } catch (Exception e) {
+            listener.getLogger().println("Emma: could not look for the reports matching " + includes + ": " + e
+                    + ", looking for them as paths");
         }
 
         // If it fails, do a legacy search
@@ -93,19 +103,6 @@ public class CocoEmmaPublisher extends Recorder {
         return files.toArray(new FilePath[files.size()]);
     }
 
-    /**
-     * save emma reports from the workspace to build folder
-     */
-    protected static void saveCoverageReports(FilePath folder, FilePath[] files) throws IOException, InterruptedException {
-        folder.mkdirs();
-        for (int i = 0; i < files.length; i++) {
-            String name = "coverage" + (i > 0 ? i : "") + ".xml";
-            FilePath src = files[i];
-            FilePath dst = folder.child(name);
-            src.copyTo(dst);
-        }
-    }
-
     @Override
     public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
         final PrintStream logger = listener.getLogger();
@@ -129,18 +126,42 @@ public class CocoEmmaPublisher extends Recorder {
         env.overrideAll(build.getBuildVariables());
         includes = env.expand(includes);
 
-        FilePath[] reports;
+        // one call to the agent finds, parses and sends the reports
+        String pattern;
         if (includes == null || includes.trim().length() == 0) {
             FilePath wp = build.getWorkspace();
             if ( wp != null )
                  logger.println("Emma: looking for coverage reports in the entire workspace: " + wp.getRemote());
-            reports = locateCoverageReports(build.getWorkspace(), "**/emma/coverage.xml");
+            pattern = "**/emma/coverage.xml";
         } else {
             logger.println("Emma: looking for coverage reports in the provided path: " + includes);
-            reports = locateCoverageReports(build.getWorkspace(), includes);
+            pattern = includes;
+        }
+
+        File emmafolder = getEmmaReport(build);
+        File pool = ReportPool.getFolder(build.getParent());
+
+        // the reports of the previous build are not sent again, nor parsed if none changed
+        CocoEmmaBuildAction previousAction = CocoEmmaBuildAction.getPreviousResult(build);
+        File previousFolder = previousAction != null ? previousAction.getCocoEmmaReport() : null;
+        String[] previous = previousFolder != null ? ReportPool.readHashes(previousFolder) : null;
+        File previousSnapshot = previousFolder != null ? new File(previousFolder, ReportSnapshot.FILE_NAME) : null;
+        // a rule marks the failed nodes in the tree, which is only reused if neither build has one
+        boolean reuse = rule == null && previous != null && !previousAction.hasRule()
+                && ReportSnapshot.isReadable(previousSnapshot);
+
+        AgentReportCollector.Result collected;
+        try {
+            collected = AgentReportCollector.collect(build.getWorkspace(), pattern, discardXmlReports ? null : emmafolder,
+                    pool, previous, reuse, listener);
+        } catch (IOException e) {
+            e.printStackTrace(logger);
+            logger.println("Emma: Could not parse coverage results. Setting Build to failure.");
+            build.setResult(Result.FAILURE);
+            return true;
         }
 
-        if (reports.length == 0) {
+        if (collected.paths.length == 0) {
             Result res = build.getResult();
             if ( res == null || res.isWorseThan(Result.UNSTABLE)) {
                 return true;
@@ -151,30 +172,73 @@ public class CocoEmmaPublisher extends Recorder {
             return true;
         } else {
             StringBuilder found = new StringBuilder();
-            for (FilePath f : reports) {
+            for (String f : collected.paths) {
                 found.append("\n          ");
-                found.append(f.getRemote());
+                found.append(f);
             }
-            logger.println("Emma: found " + reports.length + " report files: " + found.toString());
+            logger.println("Emma: found " + collected.paths.length + " report files: " + found.toString());
+        }
+        if (discardXmlReports) {
+            emmafolder.mkdirs();
+        } else {
+            logger.println("Emma: stored " + collected.paths.length + " report files in the build folder: " + emmafolder);
+            ReportPool.prune(pool, build.getParent().getBuildDir());
+        }
+        try {
+            ReportPool.writeHashes(emmafolder, collected.hashes);
+        } catch (IOException e) {
+            logger.println("Emma: could not store the hashes of the reports: " + e);
         }
 
-        FilePath emmafolder = new FilePath(getEmmaReport(build));
-        saveCoverageReports(emmafolder, reports);
-        logger.println("Emma: stored " + reports.length + " report files in the build folder: " + emmafolder);
-
-        final CocoEmmaBuildAction action = CocoEmmaBuildAction.load(build, rule, healthReports, reports);
-
-        action.applySettings(advancedSettings);
+        // summary, detailed report and rule verdicts
+        CoverageReport result = null;
+        try {
+            if (collected.unchanged) {
+                logger.println("Emma: the reports did not change since " + previousAction.owner.getDisplayName()
+                        + ", reusing its coverage report");
+                try {
+                    result = CocoEmmaBuildAction.loadReport(build, rule, healthReports, advancedSettings, listener, previousSnapshot);
+                } catch (IOException e) {
+                    // damaged since it was checked: parse the reports after all
+                    logger.println("Emma: could not reuse the coverage report of " + previousAction.owner.getDisplayName()
+                            + ": " + e);
+                    collected = AgentReportCollector.collect(build.getWorkspace(), pattern, null, null, previous, false,
+                            listener);
+                }
+            }
+            if (result == null) {
+                result = CocoEmmaBuildAction.loadReport(build, rule, healthReports, advancedSettings, listener, collected.snapshot);
+            }
+        } catch (IOException e) {
+            e.printStackTrace(logger);
+            logger.println("Emma: Could not parse coverage results. Setting Build to failure.");
+            build.setResult(Result.FAILURE);
+            return true;
+        }
+        final CocoEmmaBuildAction action = result.getAction();
+        if (!collected.unchanged) {
+            if (rule == null) {
+                // the tree is as sent by the agent, so it is not created to be written again
+                action.writeSnapshot(collected.snapshot);
+            } else {
+                // the rule marked the failed nodes of the tree
+                action.writeSnapshot(result);
+            }
+        }
         
         logger.println("Emma: " + action.getBuildHealth().getDescription());
         
         build.getActions().add(action);
+        LastResults.set(build.getParent(), build.getNumber());
+        ReportWarmer.warm(action);
+        try {
+            TrendIndex.append(build.getParent(), build.getNumber(), result);
+        } catch (IOException e) {
+            logger.println("Emma: could not update the coverage trend index: " + e);
+        }
+        GraphCache.get().invalidate(build.getParent());
 
-        final CoverageReport result = action.getResult();
-        if (result == null) {
-            logger.println("Emma: Could not parse coverage results. Setting Build to failure.");
-            build.setResult(Result.FAILURE);
-        } else if (result.isFailed()) {
+        if (result.isFailed()) {
             logger.println("Emma: code coverage enforcement failed. Setting Build to unstable.");
             build.setResult(Result.UNSTABLE);
         }
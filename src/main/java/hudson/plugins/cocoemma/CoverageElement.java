@@ -12,6 +12,11 @@ public final class CoverageElement {
     private String type;
     private String value;
 
+    /**
+     * Scratch space for parsing the value.
+     */
+    private final Ratio ratio = new Ratio();
+
     // set by attributes
     public void setType(String type) {
         this.type = type;
@@ -23,28 +28,12 @@ public final class CoverageElement {
     }
 
     void addTo(AbstractReport<?,?> report) throws IOException {
-
-    	Ratio r = null;
-    	if(type.equals("class, %")) {
-    		r = report.clazz;
-        } else if(type.equals("method, %")) {
-    		r = report.method;
-        } else if(type.equals("block, %")) {
-    		r = report.block;
-        } else if(type.equals("line, %")) {
-    		r = report.line;
-        } else if(type.equals("decision, %")) {
-    		r = report.decision;
-        } else if(type.equals("condition, %")) {
-    		r = report.condition;
-        } else if(type.equals("mcdc, %")) {
-    		r = report.mcdc;
-        } else if(type.equals("mcc, %")) {
-    		r = report.mcc;
-        } else {
+        CoverageMetric m = CoverageMetric.forType(type);
+        if (m == null) {
             throw new IllegalArgumentException("Invalid type: "+type);
         }
-    	r.addValue(value);
-
+        ratio.reset();
+        ratio.addValue(value);
+        report.addCoverage(m, ratio);
     }
 }
@@ -0,0 +1,142 @@
+package hudson.plugins.cocoemma;
+
+import org.jvnet.localizer.Localizable;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The coverage metrics found in an EMMA report.
+ *
+ * <p>
+ * The {@link #ordinal()} of a metric is its index in the per-node metric vector,
+ * so consumers can loop over {@link #values()} instead of naming each metric.
+ * A new metric also needs its case in the switches below and in
+ * {@link CocoEmmaBuildAction#getCoverage(CoverageMetric)}, which throw without one.
+ */
+public enum CoverageMetric {
+    CLASS("class, %", false),
+    METHOD("method, %", false),
+    BLOCK("block, %", false),
+    LINE("line, %", true),
+    DECISION("decision, %", true),
+    CONDITION("condition, %", true),
+    MCDC("mcdc, %", true),
+    MCC("mcc, %", true);
+
+    private static final CoverageMetric[] VALUES = values();
+
+    private static final Map<String, CoverageMetric> BY_TYPE = new HashMap<String, CoverageMetric>();
+
+    static {
+        for (CoverageMetric m : VALUES) {
+            BY_TYPE.put(m.type, m);
+        }
+    }
+
+    private final String type;
+
+    private final boolean optional;
+
+    CoverageMetric(String type, boolean optional) {
+        this.type = type;
+        this.optional = optional;
+    }
+
+    /**
+     * The value of the {@code type} attribute of the {@code <coverage>} element.
+     */
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * True if the metric may be missing from a report.
+     */
+    public boolean isOptional() {
+        return optional;
+    }
+
+    /**
+     * Number of metrics, that is the length of a metric vector.
+     */
+    public static int count() {
+        return VALUES.length;
+    }
+
+    /**
+     * Same as {@link #values()}, without copying the array. Do not modify.
+     */
+    static CoverageMetric[] all() {
+        return VALUES;
+    }
+
+    /**
+     * Looks up the metric of a {@code <coverage>} element.
+     *
+     * @return
+     *      null if the type is unknown.
+     */
+    public static CoverageMetric forType(String type) {
+        return BY_TYPE.get(type);
+    }
+
+    public String getDataColumnDescriptor(AdvancedSettings settings) {
+        switch (this) {
+        case CLASS:     return settings.getClassDataColumnDescriptor();
+        case METHOD:    return settings.getMethodDataColumnDescriptor();
+        case BLOCK:     return settings.getBlockDataColumnDescriptor();
+        case LINE:      return settings.getLineDataColumnDescriptor();
+        case DECISION:  return settings.getDecisionDataColumnDescriptor();
+        case CONDITION: return settings.getConditionDataColumnDescriptor();
+        case MCDC:      return settings.getMcDcDataColumnDescriptor();
+        case MCC:       return settings.getMccDataColumnDescriptor();
+        default:        throw new AssertionError("Unknown metric " + this);
+        }
+    }
+
+    public int getMinThreshold(EmmaHealthReportThresholds t) {
+        switch (this) {
+        case CLASS:     return t.getMinClass();
+        case METHOD:    return t.getMinMethod();
+        case BLOCK:     return t.getMinBlock();
+        case LINE:      return t.getMinLine();
+        case DECISION:  return t.getMinDecision();
+        case CONDITION: return t.getMinCondition();
+        case MCDC:      return t.getMinMcDc();
+        case MCC:       return t.getMinMcc();
+        default:        throw new AssertionError("Unknown metric " + this);
+        }
+    }
+
+    public int getMaxThreshold(EmmaHealthReportThresholds t) {
+        switch (this) {
+        case CLASS:     return t.getMaxClass();
+        case METHOD:    return t.getMaxMethod();
+        case BLOCK:     return t.getMaxBlock();
+        case LINE:      return t.getMaxLine();
+        case DECISION:  return t.getMaxDecision();
+        case CONDITION: return t.getMaxCondition();
+        case MCDC:      return t.getMaxMcDc();
+        case MCC:       return t.getMaxMcc();
+        default:        throw new AssertionError("Unknown metric " + this);
+        }
+    }
+
+    /**
+     * The health report message of a metric below its maximum threshold.
+     */
+    Localizable getHealthMessage(Ratio ratio, int percent) {
+        switch (this) {
+        case CLASS:     return Messages._BuildAction_Classes(ratio, percent);
+        case METHOD:    return Messages._BuildAction_Methods(ratio, percent);
+        case BLOCK:     return Messages._BuildAction_Blocks(ratio, percent);
+        case LINE:      return Messages._BuildAction_Lines(ratio, percent);
+        case DECISION:  return Messages._BuildAction_Decision(ratio, percent);
+        case CONDITION: return Messages._BuildAction_Conditions(ratio, percent);
+        case MCDC:      return Messages._BuildAction_Mcdc(ratio, percent);
+        case MCC:       return Messages._BuildAction_Mcc(ratio, percent);
+        default:        throw new AssertionError("Unknown metric " + this);
+        }
+    }
+}
@@ -5,9 +5,7 @@ import hudson.model.Api;
 import hudson.model.Run;
 import hudson.util.ChartUtil;
 import hudson.util.ColorPalette;
-import hudson.util.DataSetBuilder;
 import hudson.util.ShiftedCategoryAxis;
-import hudson.util.ChartUtil.NumberOnlyBuildLabel;
 import hudson.util.Graph;
 
 import org.jfree.chart.ChartFactory;
@@ -29,10 +27,16 @@ import org.kohsuke.stapler.export.ExportedBean;
 
 import java.awt.BasicStroke;
 import java.awt.Color;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
 import java.util.Calendar;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.imageio.ImageIO;
 
 /**
  * Base class of all coverage objects.
@@ -42,15 +46,6 @@ import java.util.Calendar;
 @ExportedBean
 public abstract class CoverageObject<SELF extends CoverageObject<SELF>> extends AdvancedSettings {
 
-    Ratio clazz = new Ratio();
-    Ratio method = new Ratio();
-    Ratio block = new Ratio();
-    Ratio line = new Ratio();
-    Ratio decision = new Ratio();
-    Ratio condition = new Ratio();
-    Ratio mcdc = new Ratio();
-    Ratio mcc = new Ratio();
-    
     private volatile boolean failed = false;
 
     public boolean isFailed() {
@@ -67,17 +62,17 @@ public abstract class CoverageObject<SELF extends CoverageObject<SELF>> extends
 
     @Exported(inline=true)
     public Ratio getClassCoverage() {
-        return clazz;
+        return getCoverage(CoverageMetric.CLASS);
     }
 
     @Exported(inline=true)
     public Ratio getMethodCoverage() {
-        return method;
+        return getCoverage(CoverageMetric.METHOD);
     }
 
     @Exported(inline=true)
     public Ratio getBlockCoverage() {
-        return block;
+        return getCoverage(CoverageMetric.BLOCK);
     }
 
     /**
@@ -85,7 +80,7 @@ public abstract class CoverageObject<SELF extends CoverageObject<SELF>> extends
      */
     @Exported(inline=true)
     public Ratio getLineCoverage() {
-        return line;
+        return getCoverage(CoverageMetric.LINE);
     }
 
     /**
@@ -93,7 +88,7 @@ public abstract class CoverageObject<SELF extends CoverageObject<SELF>> extends
      */
     @Exported(inline=true)
     public Ratio getDecisionCoverage() {
-        return decision;
+        return getCoverage(CoverageMetric.DECISION);
     }
 
     /**
@@ -101,7 +96,7 @@ public abstract class CoverageObject<SELF extends CoverageObject<SELF>> extends
      */
     @Exported(inline=true)
     public Ratio getConditionCoverage() {
-        return condition;
+        return getCoverage(CoverageMetric.CONDITION);
     }
 
     /**
@@ -109,7 +104,7 @@ public abstract class CoverageObject<SELF extends CoverageObject<SELF>> extends
      */
     @Exported(inline=true)
     public Ratio getMcDcCoverage() {
-        return mcdc;
+        return getCoverage(CoverageMetric.MCDC);
     }
 
     /**
@@ -117,9 +112,14 @@ public abstract class CoverageObject<SELF extends CoverageObject<SELF>> extends
      */
     @Exported(inline=true)
     public Ratio getMccCoverage() {
-        return mcc;
+        return getCoverage(CoverageMetric.MCC);
     }
 
+    /**
+     * Gets the ratio of the given metric. Can be null if this information is not collected.
+     */
+    public abstract Ratio getCoverage(CoverageMetric m);
+
     /**
      * Gets the build object that owns the whole coverage report tree.
      */
@@ -140,39 +140,38 @@ public abstract class CoverageObject<SELF extends CoverageObject<SELF>> extends
      */
     public String printFourCoverageColumns() {
         StringBuilder buf = new StringBuilder();
-        printRatioCell(isFailed(), clazz, buf, getTestNotMandatory());
-        printRatioCell(isFailed(), method, buf, getTestNotMandatory());
-        printRatioCell(isFailed(), block, buf, getTestNotMandatory());
-        printRatioCell(isFailed(), line, buf, getTestNotMandatory());
-        printRatioCell(isFailed(), decision, buf, getTestNotMandatory());
-        printRatioCell(isFailed(), condition, buf, getTestNotMandatory());
-        printRatioCell(isFailed(), mcdc, buf, getTestNotMandatory());
-        printRatioCell(isFailed(), mcc, buf, getTestNotMandatory());
+        for (CoverageMetric m : CoverageMetric.all()) {
+            printRatioCell(isFailed(), getCoverage(m), buf, getTestNotMandatory());
+        }
         return buf.toString();
     }
 
+    public boolean hasCoverage(CoverageMetric m) {
+        return getCoverage(m).isInitialized();
+    }
+
     public boolean hasMcDcCoverage() {
-        return mcdc.isInitialized();
+        return hasCoverage(CoverageMetric.MCDC);
     }
 
     public boolean hasMccCoverage() {
-        return mcc.isInitialized();
+        return hasCoverage(CoverageMetric.MCC);
     }
 
     public boolean hasDecisionCoverage() {
-        return decision.isInitialized();
+        return hasCoverage(CoverageMetric.DECISION);
     }
 
     public boolean hasConditionCoverage() {
-        return condition.isInitialized();
+        return hasCoverage(CoverageMetric.CONDITION);
     }
 
     public boolean hasLineCoverage() {
-        return line.isInitialized();
+        return hasCoverage(CoverageMetric.LINE);
     }
 
     public boolean hasClassCoverage() {
-        return clazz.isInitialized();
+        return hasCoverage(CoverageMetric.CLASS);
     }
 
     
@@ -205,6 +204,8 @@ public abstract class CoverageObject<SELF extends CoverageObject<SELF>> extends
 
     /**
      * Generates the graph that shows the coverage trend up to this report.
+     *
+     * @see TrendWindow
      */
     public void doGraph(StaplerRequest req, StaplerResponse rsp) throws IOException {
         if(ChartUtil.awtProblemCause != null) {
@@ -221,66 +222,131 @@ public abstract class CoverageObject<SELF extends CoverageObject<SELF>> extends
         int width = (w != null) ? Integer.parseInt(w) : 500;
         int height = (h != null) ? Integer.parseInt(h) : 200;
 
-        new GraphImpl(this, t, width, height) {
+        TrendWindow window = TrendWindow.of(req);
+        String key = GraphCache.key(build, this, width + "x" + height + "," + window.key());
+        GraphCache.Content png = GraphCache.get().get(key);
+        if (png == null) {
+            png = GraphCache.Content.png(new GraphImpl(createTrend(build, window), t, width, height).renderPng(width, height));
+            GraphCache.get().put(key, png);
+        }
+        png.send(req, rsp);
+    }
 
-            @Override
-            protected DataSetBuilder<String, NumberOnlyBuildLabel> createDataSet(CoverageObject<SELF> obj) {
-                DataSetBuilder<String, NumberOnlyBuildLabel> dsb = new DataSetBuilder<String, NumberOnlyBuildLabel>();
+    /**
+     * Sends the coverage trend up to this report as JSON, to be drawn by the browser.
+     *
+     * @see TrendTable
+     * @see TrendWindow
+     */
+    public void doTrendJson(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Run<?,?> build = getBuild();
+        TrendWindow window = TrendWindow.of(req);
+        String key = GraphCache.key(build, this, "json," + window.key());
+        GraphCache.Content json = GraphCache.get().get(key);
+        if (json == null) {
+            json = createTrend(build, window).toContent();
+            GraphCache.get().put(key, json);
+        }
+        json.send(req, rsp);
+    }
 
-                for (CoverageObject<SELF> a = obj; a != null; a = a.getPreviousResult()) {                  
-                    NumberOnlyBuildLabel label = new NumberOnlyBuildLabel( (Run)a.getBuild());
-                    dsb.add(a.clazz.getPercentageFloat(getTestNotMandatory()), a.getClassDataColumnDescriptor(), label);
-                    dsb.add(a.method.getPercentageFloat(getTestNotMandatory()), a.getMethodDataColumnDescriptor(), label);
-                    dsb.add(a.block.getPercentageFloat(getTestNotMandatory()), a.getBlockDataColumnDescriptor(), label);
-                    if (a.line != null) {
-                        if (a.hasLineCoverage()){
-                            dsb.add(a.line.getPercentageFloat(getTestNotMandatory()), a.getLineDataColumnDescriptor(), label);
-                        }
-                    }
-                    if (a.decision != null) {
-                        if (a.hasDecisionCoverage()){
-                            dsb.add(a.decision.getPercentageFloat(getTestNotMandatory()), a.getDecisionDataColumnDescriptor(), label);
-                        }
-                    }
-                    if (a.condition != null) {
-                        if (a.hasConditionCoverage()){
-                            dsb.add(a.condition.getPercentageFloat(getTestNotMandatory()), a.getConditionDataColumnDescriptor(), label);
-                        }
-                    }
-                    if (a.mcdc != null) {
-                        if (a.hasMcDcCoverage()){
-                            dsb.add(a.mcdc.getPercentageFloat(getTestNotMandatory()), a.getMcDcDataColumnDescriptor(), label);
-                        }
-                    }
-                    if (a.mcc != null) {
-                        if (a.hasMccCoverage()){
-                            dsb.add(a.mcc.getPercentageFloat(getTestNotMandatory()), a.getMccDataColumnDescriptor(), label);
+    /**
+     * Collects the coverage trend up to this report within the window, from the
+     * {@link TrendIndex} if possible, else by walking the previous results. The builds
+     * older than the index, published before it existed, are also walked.
+     * The trend is downsampled to {@link TrendWindow#MAX_POINTS}.
+     */
+    private TrendTable<TrendIndex.BuildLabel> createTrend(Run<?,?> build, TrendWindow window) {
+        TrendTable<TrendIndex.BuildLabel> table = new TrendTable<TrendIndex.BuildLabel>();
+        int n = 0;
+
+        String path = TrendIndex.pathOf(this);
+        TrendIndex.Trend trend = readTrend(build, path, window);
+        if (trend != null) {
+            for (TrendIndex.Point p : trend.points) {
+                n++;
+                TrendIndex.BuildLabel label = new TrendIndex.BuildLabel(p.build);
+                for (CoverageMetric m : CoverageMetric.all()) {
+                    Ratio r = p.ratios[m.ordinal()];
+                    if (r == null) {
+                        if (m.isOptional()) {
+                            continue;
                         }
+                        r = new Ratio();
                     }
+                    table.add(r.getPercentageFloat(getTestNotMandatory()), m.getDataColumnDescriptor(this), label);
+                }
+            }
+            Run<?,?> oldest = build.getParent().getBuildByNumber(trend.oldest);
+            for (CocoEmmaBuildAction a = oldest != null ? CocoEmmaBuildAction.getPreviousResult(oldest) : null;
+                    a != null && window.contains(a.getBuild().getNumber(), n); a = a.getPreviousResult()) {
+                CoverageReport r = a.getResult();
+                CoverageObject<?> o = r != null ? TrendIndex.find(r, path) : null;
+                if (o != null) {
+                    add(table, o);
+                    n++;
                 }
+            }
+            return table.downsample(TrendWindow.MAX_POINTS);
+        }
+
+        for (CoverageObject<SELF> a = this; a != null && window.contains(a.getBuild().getNumber(), n++); a = a.getPreviousResult()) {
+            add(table, a);
+        }
+        return table.downsample(TrendWindow.MAX_POINTS);
+    }
 
-                return dsb;
+    private void add(TrendTable<TrendIndex.BuildLabel> table, CoverageObject<?> a) {
+        TrendIndex.BuildLabel label = new TrendIndex.BuildLabel(a.getBuild().getNumber());
+        for (CoverageMetric m : CoverageMetric.all()) {
+            Ratio r = a.getCoverage(m);
+            if (m.isOptional() && (r == null || !r.isInitialized())) {
+                continue;
             }
-        }.doPng(req, rsp);
+            table.add(r.getPercentageFloat(getTestNotMandatory()), m.getDataColumnDescriptor(a), label);
+        }
+    }
+
+    /**
+     * Reads the trend of this object from the {@link TrendIndex} of the job.
+     *
+     * @return
+     *      null if the object or the build is not in the index, in which case
+     *      the previous results are walked instead.
+     */
+    private TrendIndex.Trend readTrend(Run<?,?> build, String path, TrendWindow window) {
+        if (path == null) {
+            return null;
+        }
+        try {
+            return TrendIndex.read(build, path, window);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to read the coverage trend of " + build, e);
+            return null;
+        }
     }
 
     public Api getApi() {
     	return new Api(this);
     }
 
-    private abstract class GraphImpl extends Graph {
+    private static final class GraphImpl extends Graph {
 
-        private CoverageObject<SELF> obj;
+        private final TrendTable<?> trend;
 
-        public GraphImpl(CoverageObject<SELF> obj, Calendar timestamp, int defaultW, int defaultH) {
+        public GraphImpl(TrendTable<?> trend, Calendar timestamp, int defaultW, int defaultH) {
             super(timestamp, defaultW, defaultH);
-            this.obj = obj;
+            this.trend = trend;
         }
 
-        protected abstract DataSetBuilder<String, NumberOnlyBuildLabel> createDataSet(CoverageObject<SELF> obj);
+        byte[] renderPng(int width, int height) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ImageIO.write(createGraph().createBufferedImage(width, height), "PNG", out);
+            return out.toByteArray();
+        }
 
         protected JFreeChart createGraph() {
-            final CategoryDataset dataset = createDataSet(obj).build();
+            final CategoryDataset dataset = trend.toDataSetBuilder().build();
             final JFreeChart chart = ChartFactory.createLineChart(
                     null, // chart title
                     null, // unused
@@ -329,4 +395,6 @@ public abstract class CoverageObject<SELF extends CoverageObject<SELF>> extends
             return chart;
         }
     }
+
+    private static final Logger LOGGER = Logger.getLogger(CoverageObject.class.getName());
 }
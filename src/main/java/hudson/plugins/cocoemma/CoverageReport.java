@@ -7,6 +7,7 @@ import javax.xml.parsers.ParserConfigurationException;
 import org.xml.sax.SAXException;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
@@ -18,33 +19,63 @@ import java.io.InputStream;
 public final class CoverageReport extends AggregatedReport<CoverageReport/*dummy*/,CoverageReport,PackageReport> {
     private final CocoEmmaBuildAction action;
 
-    private CoverageReport(CocoEmmaBuildAction action) {
+    /**
+     * Snapshot the tree is read from, if any.
+     */
+    private ReportIndex snapshot;
+
+    /**
+     * Size of a tree parsed from XML, computed once as the tree does not change.
+     */
+    private volatile long estimatedSize;
+
+    /**
+     * Set to true to build the tree with the commons-digester rules instead of
+     * the streaming {@link ReportParser}.
+     */
+    static final boolean USE_DIGESTER = Boolean.getBoolean(CoverageReport.class.getName() + ".DIGESTER");
+
+    /*package*/ CoverageReport(CocoEmmaBuildAction action) {
         this.action = action;
         setName("SquishCocoEmma");
     }
 
     public CoverageReport(CocoEmmaBuildAction action, InputStream... xmlReports) throws IOException {
+        this(action, USE_DIGESTER, xmlReports);
+    }
+
+    /*package*/ CoverageReport(CocoEmmaBuildAction action, boolean digester, InputStream... xmlReports) throws IOException {
         this(action);
-        for (InputStream is: xmlReports) {
-          try {
-            createDigester(!Boolean.getBoolean(this.getClass().getName() + ".UNSAFE")).parse(is);
-          } catch (SAXException e) {
-              throw new IOException("Failed to parse XML",e);
-          }
-        }
+        ParallelReportLoader.load(this, digester, xmlReports);
         setParent(null);
     }
 
     public CoverageReport(CocoEmmaBuildAction action, File xmlReport) throws IOException {
         this(action);
+        InputStream is = new FileInputStream(xmlReport);
         try {
-            createDigester(!Boolean.getBoolean(this.getClass().getName() + ".UNSAFE")).parse(xmlReport);
-        } catch (SAXException e) {
+            parse(is, USE_DIGESTER);
+        } catch (IOException e) {
             throw new IOException("Failed to parse "+xmlReport,e);
+        } finally {
+            is.close();
         }
         setParent(null);
     }
 
+    /*package*/ void parse(InputStream is, boolean digester) throws IOException {
+        boolean secure = !Boolean.getBoolean(this.getClass().getName() + ".UNSAFE");
+        if (!digester) {
+            new ReportParser(secure).parse(is, this);
+            return;
+        }
+        try {
+            createDigester(secure).parse(is);
+        } catch (SAXException e) {
+            throw new IOException("Failed to parse XML",e);
+        }
+    }
+
     @Override
     public CoverageReport getPreviousResult() {
         CocoEmmaBuildAction prev = action.getPreviousResult();
@@ -59,6 +90,41 @@ public final class CoverageReport extends AggregatedReport<CoverageReport/*dummy
         return action.owner;
     }
 
+    void setSnapshot(ReportIndex snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * Rough heap size of the tree, in bytes. For a tree read from a snapshot,
+     * only the nodes created so far are counted.
+     */
+    long getEstimatedSize() {
+        if (snapshot != null) {
+            return getEstimatedNodeSize() + snapshot.getCreatedSize();
+        }
+        if (estimatedSize == 0) {
+            estimatedSize = estimateSize(this);
+        }
+        return estimatedSize;
+    }
+
+    private static long estimateSize(AbstractReport<?,?> node) {
+        long s = node.getEstimatedNodeSize();
+        if (node instanceof AggregatedReport) {
+            for (AbstractReport<?,?> c : ((AggregatedReport<?,?,?>) node).getChildren().values()) {
+                s += estimateSize(c);
+            }
+        }
+        return s;
+    }
+
+    /**
+     * Gets the build action this report belongs to.
+     */
+    public CocoEmmaBuildAction getAction() {
+        return action;
+    }
+
     /**
      * Creates a configured {@link Digester} instance for parsing report XML.
      */
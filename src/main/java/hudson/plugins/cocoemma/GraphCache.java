@@ -0,0 +1,149 @@
+package hudson.plugins.cocoemma;
+
+import hudson.model.Job;
+import hudson.model.Run;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Rendered trend graphs and their JSON, so that pages polled by wall monitors do not
+ * render the same chart again and again.
+ *
+ * <p>
+ * The contents are keyed by job, build, object and variant (the size of a PNG, or
+ * JSON), and are dropped when the coverage of a build of the job is published, fails
+ * or is deleted. They are sent with an {@code ETag} and a {@code Last-Modified} date,
+ * so that browsers get a 304 when they already have them.
+ */
+final class GraphCache {
+
+    /**
+     * Maximum number of contents kept.
+     */
+    static final int MAX_ENTRIES = Math.max(0, Integer.getInteger(GraphCache.class.getName() + ".MAX_ENTRIES", 256));
+
+    private static final GraphCache INSTANCE = new GraphCache(MAX_ENTRIES);
+
+    static GraphCache get() {
+        return INSTANCE;
+    }
+
+    private final LinkedHashMap<String, Content> contents;
+
+    GraphCache(final int maxEntries) {
+        contents = new LinkedHashMap<String, Content>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Content> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Key of the graph of an object. The job comes first, see {@link #invalidate(String)}.
+     */
+    static String key(Run<?,?> build, CoverageObject<?> o, String variant) {
+        return key(build.getParent().getFullName(), build.getNumber(),
+                o.getClass().getSimpleName() + ':' + pathOf(o), variant, o.getTestNotMandatory());
+    }
+
+    static String key(String job, int build, String path, String variant, boolean testNotMandatory) {
+        return job + '\n' + build + '\n' + path + '\n' + variant + (testNotMandatory ? "\nn" : "");
+    }
+
+    private static String pathOf(CoverageObject<?> o) {
+        if (o instanceof AbstractReport && ((AbstractReport<?,?>) o).getParent() != null) {
+            AbstractReport<?,?> r = (AbstractReport<?,?>) o;
+            return pathOf(r.getParent()) + '/' + r.getName();
+        }
+        return "";
+    }
+
+    synchronized Content get(String key) {
+        return contents.get(key);
+    }
+
+    synchronized void put(String key, Content content) {
+        contents.put(key, content);
+    }
+
+    void invalidate(Job<?,?> job) {
+        invalidate(job.getFullName());
+    }
+
+    /**
+     * Drops the contents of the job.
+     */
+    synchronized void invalidate(String job) {
+        String prefix = job + '\n';
+        for (Iterator<String> it = contents.keySet().iterator(); it.hasNext();) {
+            if (it.next().startsWith(prefix)) {
+                it.remove();
+            }
+        }
+    }
+
+    synchronized int size() {
+        return contents.size();
+    }
+
+    /**
+     * A rendered PNG or JSON document.
+     */
+    static final class Content {
+        final byte[] data;
+        final String contentType;
+        /**
+         * In whole seconds, as sent in HTTP dates.
+         */
+        final long lastModified;
+        /**
+         * Only depends on the data, so that a content rendered again is still current
+         * for the browsers.
+         */
+        final String etag;
+
+        Content(byte[] data, long time, String contentType) {
+            this.data = data;
+            this.contentType = contentType;
+            this.lastModified = time / 1000 * 1000;
+            this.etag = '"' + Integer.toHexString(data.length) + '-' + Integer.toHexString(Arrays.hashCode(data)) + '"';
+        }
+
+        static Content png(byte[] data) {
+            return new Content(data, System.currentTimeMillis(), "image/png");
+        }
+
+        /**
+         * Checks whether the client already has this content.
+         */
+        boolean isNotModified(StaplerRequest req) {
+            String match = req.getHeader("If-None-Match");
+            if (match != null) {
+                return match.equals(etag);
+            }
+            return req.getDateHeader("If-Modified-Since") >= lastModified;
+        }
+
+        void send(StaplerRequest req, StaplerResponse rsp) throws IOException {
+            rsp.setHeader("ETag", etag);
+            rsp.setDateHeader("Last-Modified", lastModified);
+            // the trend changes when a build is published, so always revalidate
+            rsp.setHeader("Cache-Control", "no-cache");
+            if (isNotModified(req)) {
+                rsp.setStatus(StaplerResponse.SC_NOT_MODIFIED);
+                return;
+            }
+            rsp.setContentType(contentType);
+            rsp.setContentLength(data.length);
+            rsp.getOutputStream().write(data);
+        }
+    }
+}
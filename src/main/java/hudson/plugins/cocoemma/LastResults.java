@@ -0,0 +1,134 @@
+package hudson.plugins.cocoemma;
+
+import hudson.Extension;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.RunListener;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Number of the last build of each job with a {@link CocoEmmaBuildAction}, so that
+ * {@link CocoEmmaProjectAction#getLastResult()} does not walk the build history.
+ *
+ * <p>
+ * The numbers are set when coverage is published, and dropped when that build fails
+ * or is deleted, or when the job is renamed or deleted; the next lookup then walks
+ * the history once. They are not persisted,
+ * so the first lookup after a restart walks it too.
+ */
+final class LastResults {
+
+    /**
+     * Stands for a job without any build with coverage.
+     */
+    private static final int NONE = 0;
+
+    private static final ConcurrentMap<String, Integer> numbers = new ConcurrentHashMap<String, Integer>();
+
+    private LastResults() {
+    }
+
+    /**
+     * Gets the action of the last build that did not fail and has coverage.
+     */
+    static CocoEmmaBuildAction get(Job<?,?> job) {
+        Integer n = numbers.get(job.getFullName());
+        if (n != null) {
+            if (n == NONE) {
+                return null;
+            }
+            CocoEmmaBuildAction a = actionOf(job.getBuildByNumber(n));
+            if (a != null) {
+                return a;
+            }
+        }
+        for (Run<?,?> b = job.getLastBuild(); b != null; b = b.getPreviousBuild()) {
+            CocoEmmaBuildAction a = actionOf(b);
+            if (a != null) {
+                set(job, b.getNumber());
+                return a;
+            }
+        }
+        numbers.put(job.getFullName(), NONE);
+        return null;
+    }
+
+    private static CocoEmmaBuildAction actionOf(Run<?,?> b) {
+        if (b == null || b.getResult() == Result.FAILURE) {
+            return null;
+        }
+        return b.getAction(CocoEmmaBuildAction.class);
+    }
+
+    /**
+     * Records that the build has coverage, unless a newer one is already recorded.
+     */
+    static void set(Job<?,?> job, int number) {
+        String key = job.getFullName();
+        while (true) {
+            Integer n = numbers.get(key);
+            if (n == null) {
+                if (numbers.putIfAbsent(key, number) == null) {
+                    return;
+                }
+            } else if (n >= number || numbers.replace(key, n, number)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Forgets the build if it is the recorded one.
+     */
+    static void remove(Job<?,?> job, int number) {
+        numbers.remove(job.getFullName(), number);
+    }
+
+    /**
+     * Forgets the job, whose name may be given to another one.
+     */
+    static void remove(String fullName) {
+        numbers.remove(fullName);
+    }
+
+    /**
+     * Drops the builds that fail after publishing and the deleted builds.
+     */
+    @Extension
+    public static final class Listener extends RunListener<Run<?,?>> {
+        @Override
+        public void onCompleted(Run<?,?> run, TaskListener listener) {
+            if (run.getResult() == Result.FAILURE) {
+                remove(run.getParent(), run.getNumber());
+            }
+        }
+
+        @Override
+        public void onDeleted(Run<?,?> run) {
+            remove(run.getParent(), run.getNumber());
+        }
+    }
+
+    /**
+     * Drops the jobs that are renamed, moved or deleted.
+     */
+    @Extension
+    public static final class ItemListenerImpl extends ItemListener {
+        @Override
+        public void onDeleted(Item item) {
+            remove(item.getFullName());
+        }
+
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            remove(oldFullName);
+            remove(newFullName);
+        }
+    }
+}
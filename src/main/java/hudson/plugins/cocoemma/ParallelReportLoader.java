@@ -0,0 +1,109 @@
+package hudson.plugins.cocoemma;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Parses several report files in parallel.
+ *
+ * <p>
+ * Each file is parsed into its own partial {@link CoverageReport} on a bounded
+ * {@link ForkJoinPool}, and the partial trees are merged pairwise, summing the ratios
+ * of the packages, source files, classes and methods present in more than one file.
+ * The merge order only depends on the order of the files, so the result is the same
+ * as when parsing them one after another.
+ */
+final class ParallelReportLoader {
+
+    /**
+     * Maximum number of files parsed at the same time.
+     */
+    static final int PARALLELISM = Math.max(1, Integer.getInteger(ParallelReportLoader.class.getName() + ".PARALLELISM",
+            Runtime.getRuntime().availableProcessors()));
+
+    private static ForkJoinPool pool;
+
+    private ParallelReportLoader() {
+    }
+
+    private static synchronized ForkJoinPool getPool() {
+        if (pool == null) {
+            pool = new ForkJoinPool(PARALLELISM);
+        }
+        return pool;
+    }
+
+    /**
+     * Parses the given reports and merges them into the root.
+     */
+    static void load(CoverageReport root, boolean digester, InputStream... reports) throws IOException {
+        if (reports.length == 0) {
+            return;
+        }
+        if (reports.length == 1) {
+            root.parse(reports[0], digester);
+            return;
+        }
+        if (PARALLELISM == 1) {
+            // each file is parsed on its own, so that only the trees of different files are merged
+            for (InputStream is : reports) {
+                CoverageReport partial = new CoverageReport(root.getAction());
+                partial.parse(is, digester);
+                root.merge(partial);
+            }
+            return;
+        }
+        CoverageReport merged;
+        try {
+            merged = getPool().invoke(new ParseTask(root.getAction(), digester, reports, 0, reports.length));
+        } catch (RuntimeException e) {
+            for (Throwable t = e; t != null; t = t.getCause()) {
+                if (t instanceof IOException) {
+                    throw new IOException(t.getMessage(), t);
+                }
+            }
+            throw e;
+        }
+        root.merge(merged);
+    }
+
+    private static final class ParseTask extends RecursiveTask<CoverageReport> {
+        private final CocoEmmaBuildAction action;
+        private final boolean digester;
+        private final InputStream[] reports;
+        private final int from, to;
+
+        ParseTask(CocoEmmaBuildAction action, boolean digester, InputStream[] reports, int from, int to) {
+            this.action = action;
+            this.digester = digester;
+            this.reports = reports;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected CoverageReport compute() {
+            if (to - from == 1) {
+                CoverageReport partial = new CoverageReport(action);
+                try {
+                    partial.parse(reports[from], digester);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return partial;
+            }
+            int mid = (from + to) >>> 1;
+            ParseTask left = new ParseTask(action, digester, reports, from, mid);
+            left.fork();
+            CoverageReport right = new ParseTask(action, digester, reports, mid, to).compute();
+            CoverageReport merged = left.join();
+            merged.merge(right);
+            return merged;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+}
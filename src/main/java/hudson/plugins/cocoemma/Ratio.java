@@ -7,7 +7,12 @@ import org.kohsuke.stapler.export.Exported;
 import org.kohsuke.stapler.export.ExportedBean;
 
 /**
- * Represents x/y where x={@link #numerator} and y={@link #denominator}.
+ * Represents x/y where x is the numerator and y the denominator.
+ *
+ * <p>
+ * Counts are kept as exact {@code long}s, so that summing a large report does not
+ * lose any count. Some tools report fractional values such as "8346,3/13135"; those
+ * are summed separately as {@code double}s.
  * 
  * @author Kohsuke Kawaguchi
  */
@@ -15,39 +20,122 @@ import org.kohsuke.stapler.export.ExportedBean;
 final public class Ratio implements Serializable {
   
 
-    private float numerator = 0;
-    private float denominator = 0;
+    private long numeratorCount;
+    private long denominatorCount;
+    private double numeratorFraction;
+    private double denominatorFraction;
     boolean initialized = false;
 
+    /**
+     * Float values written by older versions in build.xml.
+     * Only set while reading such data, see {@link #readResolve()}.
+     */
+    @Deprecated
+    private Float numerator, denominator;
+
+    /**
+     * True for the ratios built from the metrics of a report node, which changing
+     * would not change the node.
+     */
+    private transient boolean readOnly;
+
     public Ratio(float...f) {
     	if (f.length >=2 ) {
     		initialized = true;
-            this.numerator = f[0];
-            this.denominator = f[1];
+            set(f[0], f[1]);
     	}
     }
-    
+
+    Ratio(long numeratorCount, long denominatorCount, double numeratorFraction, double denominatorFraction) {
+        this.numeratorCount = numeratorCount;
+        this.denominatorCount = denominatorCount;
+        this.numeratorFraction = numeratorFraction;
+        this.denominatorFraction = denominatorFraction;
+        this.initialized = true;
+    }
+
+    /**
+     * Makes this ratio read-only.
+     */
+    Ratio readOnly() {
+        readOnly = true;
+        return this;
+    }
+
+    private void checkWritable() {
+        if (readOnly) {
+            throw new UnsupportedOperationException("Read-only ratio, the report is not changed through it");
+        }
+    }
+
+    private void set(double n, double d) {
+        if (isCount(n)) numeratorCount = (long) n; else numeratorFraction = n;
+        if (isCount(d)) denominatorCount = (long) d; else denominatorFraction = d;
+    }
+
+    private static boolean isCount(double v) {
+        return v >= 0 && v < 0x1p63 && v == Math.rint(v);
+    }
+
+    private Object readResolve() {
+        if (numerator != null || denominator != null) {
+            set(numerator != null ? numerator : 0, denominator != null ? denominator : 0);
+            numerator = denominator = null;
+        }
+        return this;
+    }
+
     public float getNumerator() {
-        return numerator;
+        return (float) numeratorValue();
     }
 
     public float getDenominator() {
-        return denominator;
+        return (float) denominatorValue();
+    }
+
+    private double numeratorValue() {
+        return numeratorCount + numeratorFraction;
+    }
+
+    private double denominatorValue() {
+        return denominatorCount + denominatorFraction;
+    }
+
+    long getNumeratorCount() {
+        return numeratorCount;
+    }
+
+    long getDenominatorCount() {
+        return denominatorCount;
+    }
+
+    double getNumeratorFraction() {
+        return numeratorFraction;
+    }
+
+    double getDenominatorFraction() {
+        return denominatorFraction;
+    }
+
+    /**
+     * Whether the ratio has non integer values.
+     */
+    boolean hasFraction() {
+        return numeratorFraction != 0 || denominatorFraction != 0;
     }
 
     /**
      * Gets "x/y" representation.
      */
     public String toString() {
-        return print(numerator)+"/"+print(denominator);
+        return print(numeratorCount, numeratorFraction)+"/"+print(denominatorCount, denominatorFraction);
     }
 
-    private String print(float f) {
-        int i = (int) f;
-        if(i==f)
-            return String.valueOf(i);
+    private String print(long count, double fraction) {
+        if(fraction==0)
+            return String.valueOf(count);
         else
-            return String.valueOf(f);
+            return String.valueOf((float) (count + fraction));
     }
 
     /**
@@ -63,12 +151,13 @@ final public class Ratio implements Serializable {
      */
     @Exported
     public float getPercentageFloat(boolean tests_not_mandatory) {
+        double d = denominatorValue();
         
         if(tests_not_mandatory){
-            return denominator<=0? 100: 100*numerator/denominator;
+            return d<=0? 100: (float) (100*numeratorValue()/d);
         }
         
-        return denominator<=0? 0: 100*numerator/denominator;
+        return d<=0? 0: (float) (100*numeratorValue()/d);
     }
 
     public boolean equals(Object o) {
@@ -77,57 +166,186 @@ final public class Ratio implements Serializable {
 
         Ratio ratio = (Ratio) o;
 
-        return Float.compare(ratio.denominator, denominator)==0
-            && Float.compare(ratio.numerator, numerator)==0;
+        return ratio.numeratorCount == numeratorCount
+            && ratio.denominatorCount == denominatorCount
+            && Double.compare(ratio.numeratorFraction, numeratorFraction)==0
+            && Double.compare(ratio.denominatorFraction, denominatorFraction)==0;
 
     }
 
     public int hashCode() {
-        int result;
-        result = numerator != +0.0f ? Float.floatToIntBits(numerator) : 0;
-        result = 31 * result + denominator != +0.0f ? Float.floatToIntBits(denominator) : 0;
+        int result = Long.hashCode(numeratorCount);
+        result = 31 * result + Long.hashCode(denominatorCount);
+        result = 31 * result + Double.hashCode(numeratorFraction);
+        result = 31 * result + Double.hashCode(denominatorFraction);
         return result;
     }
     
     public void addValue(String v) {
-        float[] f = parse(v);
-        numerator += f[0];
-        denominator += f[1];
-		initialized = true;
+        addValue((CharSequence) v);
+    }
+
+    /**
+     * Adds the "a/b" counts of an EMMA value "52% (52/100)".
+     *
+     * <p>
+     * The numbers are scanned in place, so that no intermediate strings or arrays
+     * are created for the millions of values of a large report.
+     */
+    public void addValue(CharSequence v) {
+        // only look at "a/b" in "N% (a/b)"
+        int start = indexOf(v, '(', 0, v.length()) + 1;
+        int end = v.length() - 1;
+        int slash = indexOf(v, '/', start, end);
+        if (slash < 0) {
+            throw new NumberFormatException("Invalid coverage value: " + v);
+        }
+        long n = parseCount(v, start, slash);
+        long d = parseCount(v, slash + 1, end);
+        double nf = n < 0 ? parseDouble(v, start, slash) : 0;
+        double df = d < 0 ? parseDouble(v, slash + 1, end) : 0;
+        add(Math.max(n, 0), Math.max(d, 0), nf, df);
     }
     
+    /**
+     * Adds the counts of another ratio of the same metric to this one.
+     */
+    void add(Ratio r) {
+        if (r != null && r.initialized) {
+            add(r.numeratorCount, r.denominatorCount, r.numeratorFraction, r.denominatorFraction);
+        }
+    }
+
+    void add(long numeratorCount, long denominatorCount, double numeratorFraction, double denominatorFraction) {
+        checkWritable();
+        this.numeratorCount += numeratorCount;
+        this.denominatorCount += denominatorCount;
+        this.numeratorFraction += numeratorFraction;
+        this.denominatorFraction += denominatorFraction;
+        initialized = true;
+    }
+
+    void reset() {
+        checkWritable();
+        numeratorCount = 0;
+        denominatorCount = 0;
+        numeratorFraction = 0;
+        denominatorFraction = 0;
+        initialized = false;
+    }
+
     public boolean isInitialized() {
     	return initialized;
     }
 
+    static Ratio parseValue(String v) throws IOException {
+        Ratio r = new Ratio();
+        r.addValue(v);
+        return r;
+    }
+
+    private static int indexOf(CharSequence v, char c, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (v.charAt(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+        1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18
+    };
+
     /**
-     * Parses the value attribute format of EMMA "52% (52/100)".
+     * Parses a plain count such as "1345", "1345." or "1345,0" stored in a part of a
+     * character sequence.
+     *
+     * @return
+     *      -1 if the value is not a count that fits in a long.
      */
-    static float[] parse(String v) {
-        // if only I could use java.util.Scanner...
-        
-        // only leave "a/b" in "N% (a/b)"
-        int idx = v.indexOf('(');
-        v = v.substring(idx+1,v.length()-1);
-        idx = v.indexOf('/');
-        
-        return new float[]{ parseFloat(v.substring(0,idx)), parseFloat(v.substring(idx+1)) };
-    }
+    static long parseCount(CharSequence v, int start, int end) {
+        int from = start, to = end;
+        while (from < to && v.charAt(from) <= ' ') from++;
+        while (to > from && v.charAt(to - 1) <= ' ') to--;
 
-    static Ratio parseValue(String v) throws IOException {
-        return new Ratio(parse(v));
+        long count = 0;
+        int digits = 0;
+        boolean separator = false;
+        for (int i = from; i < to; i++) {
+            char c = v.charAt(i);
+            if (separator) {
+                if (c != '0') {
+                    return -1;
+                }
+            } else if (c >= '0' && c <= '9') {
+                if (++digits > 18) {
+                    return -1;
+                }
+                count = count * 10 + (c - '0');
+            } else if (c == '.' || c == ',') {
+                separator = true;
+            } else {
+                return -1;
+            }
+        }
+        return digits == 0 ? -1 : count;
     }
 
      /**
-      * Parses the float value stored in a string. Uses simple heuristics to
+      * Parses the value stored in a part of a character sequence. Uses simple
+      * heuristics to handle comma or dot as a decimal point.
+      *
+      * <p>
+      * Plain decimal numbers are scanned directly; anything else (exponents, very long
+      * mantissas, malformed input) goes through {@link Double#parseDouble(String)}.
+      */
+     static double parseDouble(CharSequence v, int start, int end) {
+         int from = start, to = end;
+         while (from < to && v.charAt(from) <= ' ') from++;
+         while (to > from && v.charAt(to - 1) <= ' ') to--;
+
+         int i = from;
+         boolean negative = false;
+         if (i < to && (v.charAt(i) == '-' || v.charAt(i) == '+')) {
+             negative = v.charAt(i) == '-';
+             i++;
+         }
+         long mantissa = 0;
+         int digits = 0, fractionDigits = 0;
+         boolean separator = false;
+         for (; i < to; i++) {
+             char c = v.charAt(i);
+             if (c >= '0' && c <= '9') {
+                 if (++digits > 18) {
+                     return parseDouble(v.subSequence(start, end).toString());
+                 }
+                 mantissa = mantissa * 10 + (c - '0');
+                 if (separator) fractionDigits++;
+             } else if ((c == '.' || c == ',') && !separator) {
+                 separator = true;
+             } else {
+                 return parseDouble(v.subSequence(start, end).toString());
+             }
+         }
+         if (digits == 0) {
+             return parseDouble(v.subSequence(start, end).toString());
+         }
+         double value = fractionDigits == 0 ? mantissa : mantissa / POWERS_OF_TEN[fractionDigits];
+         return negative ? -value : value;
+     }
+
+     /**
+      * Parses the value stored in a string. Uses simple heuristics to
       * handle comma or dot as a decimal point.
       */
-     private static float parseFloat(String v) {
+     private static double parseDouble(String v) {
          int idx = v.indexOf(',');
          if (idx >= 0) {
              v = v.substring(0, idx) + "." + v.substring(idx+1);
          }
-         return Float.parseFloat(v);
+         return Double.parseDouble(v.trim());
      }
 
     private static final long serialVersionUID = 1L;
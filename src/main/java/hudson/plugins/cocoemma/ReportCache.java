@@ -0,0 +1,173 @@
+package hudson.plugins.cocoemma;
+
+import hudson.Extension;
+import hudson.model.Run;
+import hudson.model.listeners.RunListener;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Controller-wide cache of the loaded {@link CoverageReport}s, with a memory budget.
+ *
+ * <p>
+ * The reports are evicted in least recently used order once the sum of their
+ * estimated sizes ({@link CoverageReport#getEstimatedSize()}) exceeds the budget.
+ * The most recently used report is always kept, even if it is larger than the budget.
+ */
+final class ReportCache {
+
+    /**
+     * Memory budget in bytes. Defaults to a tenth of the maximum heap.
+     */
+    static final long MAX_BYTES = Long.getLong(ReportCache.class.getName() + ".MAX_BYTES",
+            Runtime.getRuntime().maxMemory() / 10);
+
+    private static final ReportCache INSTANCE = new ReportCache(MAX_BYTES);
+
+    static ReportCache get() {
+        return INSTANCE;
+    }
+
+    private final long maxBytes;
+
+    /**
+     * Keyed by the action, in access order.
+     */
+    private final LinkedHashMap<CocoEmmaBuildAction, Entry> entries = new LinkedHashMap<CocoEmmaBuildAction, Entry>(16, 0.75f, true);
+
+    private long size;
+    private long hits, misses, evictions;
+
+    ReportCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    private static final class Entry {
+        final CoverageReport report;
+        long size;
+
+        Entry(CoverageReport report, long size) {
+            this.report = report;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Gets the cached report of the action.
+     *
+     * @return
+     *      null if the report is not loaded.
+     */
+    synchronized CoverageReport get(CocoEmmaBuildAction action) {
+        Entry e = entries.get(action);
+        if (e == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        // the reports read from a snapshot grow as their nodes are created; the size
+        // of the others was computed once by put, so this does not walk the tree
+        long s = e.report.getEstimatedSize();
+        size += s - e.size;
+        e.size = s;
+        evict();
+        return e.report;
+    }
+
+    /**
+     * Same as {@link #get(CocoEmmaBuildAction)} without touching the order or the statistics.
+     */
+    synchronized boolean contains(CocoEmmaBuildAction action) {
+        return entries.containsKey(action);
+    }
+
+    void put(CocoEmmaBuildAction action, CoverageReport report) {
+        // may walk the whole tree, so not while holding the cache
+        long s = report.getEstimatedSize();
+        synchronized (this) {
+            Entry old = entries.put(action, new Entry(report, s));
+            if (old != null) {
+                size -= old.size;
+            }
+            size += s;
+            evict();
+        }
+    }
+
+    synchronized void remove(CocoEmmaBuildAction action) {
+        Entry old = entries.remove(action);
+        if (old != null) {
+            size -= old.size;
+        }
+    }
+
+    synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<CocoEmmaBuildAction, Entry>> it = entries.entrySet().iterator();
+        while (size > maxBytes && entries.size() > 1) {
+            Map.Entry<CocoEmmaBuildAction, Entry> eldest = it.next();
+            size -= eldest.getValue().size;
+            it.remove();
+            evictions++;
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine("Evicted the coverage report of " + eldest.getKey().getBuild() + ", " + this);
+            }
+        }
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Estimated size of the cached reports, in bytes.
+     */
+    synchronized long getSize() {
+        return size;
+    }
+
+    synchronized int getCount() {
+        return entries.size();
+    }
+
+    long getMaxBytes() {
+        return maxBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ReportCache[" + entries.size() + " reports, " + size + "/" + maxBytes + " bytes, "
+                + hits + " hits, " + misses + " misses, " + evictions + " evictions]";
+    }
+
+    /**
+     * Drops the reports of deleted builds.
+     */
+    @Extension
+    public static final class DeletedBuildListener extends RunListener<Run<?,?>> {
+        @Override
+        public void onDeleted(Run<?,?> run) {
+            for (CocoEmmaBuildAction a : run.getActions(CocoEmmaBuildAction.class)) {
+                get().remove(a);
+            }
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ReportCache.class.getName());
+}
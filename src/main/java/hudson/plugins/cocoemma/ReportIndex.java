@@ -0,0 +1,320 @@
+package hudson.plugins.cocoemma;
+
+import hudson.Functions;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Read access to a {@link ReportSnapshot}, from which the report nodes are created
+ * on demand.
+ *
+ * <p>
+ * The snapshot file is memory mapped, so that browsing a path of a large report only
+ * touches the pages of the nodes on that path. The {@link AggregatedReport}s created
+ * from an index keep a reference to it and create their children when first accessed.
+ *
+ * <p>
+ * The names and the hierarchy of the nodes come from a {@link ReportSkeleton} shared
+ * with the other builds of the same structure, so an index only has the metrics of
+ * its own build. A snapshot read in the heap only keeps those.
+ */
+final class ReportIndex {
+
+    /**
+     * Set to true to read the snapshot in the heap instead of mapping it. The default
+     * on Windows, where mapped files cannot be deleted.
+     */
+    static final boolean NO_MMAP = Boolean.parseBoolean(System.getProperty(ReportIndex.class.getName() + ".NO_MMAP",
+            String.valueOf(Functions.isWindows())));
+
+    private final ReportSkeleton skeleton;
+
+    /**
+     * The mapped snapshot, null if it was read in the heap.
+     * Only accessed with absolute gets, so it can be shared by threads.
+     */
+    private final ByteBuffer buf;
+    private final int nodesOffset;
+
+    /**
+     * The metric columns of the nodes, when the snapshot was read in the heap.
+     */
+    private final byte[] flags;
+    private final int[] masks;
+    private final long[] positions;
+
+    /**
+     * The metrics section. Only accessed with absolute gets.
+     */
+    private final ByteBuffer metrics;
+
+    /**
+     * Estimated size of the nodes created so far.
+     */
+    private final AtomicLong createdSize = new AtomicLong();
+
+    ReportIndex(ByteBuffer buf) throws IOException {
+        int nodeCount, nameCount, namesOffset, metricsOffset, end;
+        try {
+            if (buf.getInt(0) != ReportSnapshot.MAGIC) {
+                throw new IOException("Not a coverage report snapshot");
+            }
+            int version = buf.getInt(4);
+            if (version != ReportSnapshot.VERSION) {
+                throw new IOException("Unsupported coverage report snapshot version " + version);
+            }
+            nodeCount = buf.getInt(8);
+            nameCount = buf.getInt(12);
+            namesOffset = checkedOffset(buf, buf.getLong(16));
+            nodesOffset = checkedOffset(buf, buf.getLong(24));
+            metricsOffset = checkedOffset(buf, buf.getLong(32));
+            if (nodeCount < 1 || nameCount < 0 || namesOffset > nodesOffset
+                    || (long) nodesOffset + (long) ReportSnapshot.NODE_SIZE * nodeCount > metricsOffset) {
+                throw new IOException("Truncated coverage report snapshot");
+            }
+            long last = metricsOffset + metricsEnd(buf, nodesOffset + ReportSnapshot.NODE_SIZE * (nodeCount - 1));
+            if (last > buf.limit()) {
+                throw new IOException("Truncated coverage report snapshot");
+            }
+            end = (int) last;
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Truncated coverage report snapshot", e);
+        }
+
+        byte[] hash = null;
+        if (buf.limit() - end >= ReportSnapshot.TRAILER_SIZE && buf.getInt(end) == ReportSnapshot.TRAILER) {
+            hash = new byte[ReportSnapshot.TRAILER_SIZE - 4];
+            ByteBuffer b = buf.duplicate();
+            b.position(end + 4);
+            b.get(hash);
+        }
+        // the trailer is only trusted for a mapped snapshot, whose pages are not all read
+        if (hash == null || !buf.isDirect()) {
+            byte[] computed = ReportSkeleton.hash(buf, nodeCount, namesOffset, nodesOffset);
+            if (hash != null && !Arrays.equals(hash, computed)) {
+                throw new IOException("Corrupted coverage report snapshot");
+            }
+            hash = computed;
+        }
+        skeleton = ReportSkeleton.of(hash, buf, nodeCount, nameCount, namesOffset, nodesOffset);
+        if (skeleton.charge()) {
+            createdSize.addAndGet(skeleton.getEstimatedSize());
+        }
+
+        if (buf.isDirect()) {
+            this.buf = buf;
+            this.flags = null;
+            this.masks = null;
+            this.positions = null;
+            ByteBuffer m = buf.duplicate();
+            m.position(metricsOffset);
+            m.limit(end);
+            this.metrics = m.slice();
+        } else {
+            // read anyway, so checked at once
+            skeleton.check();
+            checkMetrics(buf, nodeCount, nodesOffset, end - metricsOffset);
+
+            // only keep the columns of this build, the rest is in the skeleton
+            this.buf = null;
+            this.flags = new byte[nodeCount];
+            this.masks = new int[nodeCount];
+            this.positions = new long[nodeCount];
+            for (int i = 0; i < nodeCount; i++) {
+                int rec = nodesOffset + ReportSnapshot.NODE_SIZE * i;
+                flags[i] = buf.get(rec + 1);
+                masks[i] = buf.getInt(rec + 4);
+                positions[i] = buf.getLong(rec + 24);
+            }
+            byte[] m = new byte[end - metricsOffset];
+            ByteBuffer d = buf.duplicate();
+            d.position(metricsOffset);
+            d.get(m);
+            this.metrics = ByteBuffer.wrap(m);
+            // counts in the ReportCache
+            createdSize.addAndGet(13L * nodeCount + m.length);
+        }
+    }
+
+    private static int checkedOffset(ByteBuffer buf, long offset) throws IOException {
+        if (offset < 0 || offset > buf.limit()) {
+            throw new IOException("Corrupted coverage report snapshot");
+        }
+        return (int) offset;
+    }
+
+    /**
+     * Maps the snapshot file.
+     */
+    static ReportIndex open(File file) throws IOException {
+        FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            long size = ch.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Coverage report snapshot too large: " + file);
+            }
+            ByteBuffer b;
+            if (NO_MMAP) {
+                b = ByteBuffer.allocate((int) size);
+                while (b.hasRemaining() && ch.read(b) >= 0) {
+                    // fill the buffer
+                }
+                b.flip();
+            } else {
+                // the mapping stays valid after the channel is closed
+                b = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            return new ReportIndex(b);
+        } finally {
+            ch.close();
+        }
+    }
+
+    /**
+     * Creates the root of the report. The rest of the tree is created on access.
+     */
+    CoverageReport createRoot(CocoEmmaBuildAction action) throws IOException {
+        CoverageReport root = new CoverageReport(action);
+        try {
+            skeleton.check(0);
+            load(root, 0);
+            root.setSnapshot(this);
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupted coverage report snapshot", e);
+        }
+        return root;
+    }
+
+    /**
+     * Creates the node of the given index, without its children.
+     */
+    AbstractReport<?,?> createNode(int i) {
+        skeleton.check(i);
+        AbstractReport<?,?> n = ReportSnapshot.createNode(skeleton.getKind(i));
+        n.setName(skeleton.getName(i));
+        load(n, i);
+        createdSize.addAndGet(n.getEstimatedNodeSize());
+        return n;
+    }
+
+    private void load(AbstractReport<?,?> n, int i) {
+        byte flags = getFlags(i);
+        int mask = getMask(i);
+        long p = getPosition(i);
+        if (!hasValidMetrics(flags, mask, p, metrics.capacity())) {
+            throw new IllegalStateException("Corrupted coverage report snapshot: node " + i);
+        }
+        int position = (int) p;
+
+        int size = 2 * Integer.bitCount(mask);
+        long[] counts = new long[size];
+        for (int j = 0; j < size; j++) {
+            counts[j] = metrics.getLong(position + 8 * j);
+        }
+        double[] fractions = null;
+        if ((flags & ReportSnapshot.HAS_FRACTIONS) != 0) {
+            fractions = new double[size];
+            for (int j = 0; j < size; j++) {
+                fractions[j] = metrics.getDouble(position + 8 * (size + j));
+            }
+        }
+        n.setMetrics(mask, counts, fractions);
+        if ((flags & ReportSnapshot.FAILED) != 0) {
+            // before the parent is set, so this does not propagate
+            n.setFailed();
+        }
+        if (n instanceof AggregatedReport && getChildCount(i) > 0) {
+            ((AggregatedReport<?,?,?>) n).setIndex(this, i);
+        }
+    }
+
+    long getCreatedSize() {
+        return createdSize.get();
+    }
+
+    int getFirstChild(int i) {
+        return skeleton.getFirstChild(i);
+    }
+
+    int getChildCount(int i) {
+        return skeleton.getChildCount(i);
+    }
+
+    String getName(int i) {
+        return skeleton.getName(i);
+    }
+
+    /**
+     * Finds the child of the given node by name.
+     *
+     * @return
+     *      -1 if there is no such child.
+     */
+    int findChild(int i, String name) {
+        return skeleton.findChild(i, name);
+    }
+
+    private byte getFlags(int i) {
+        return flags != null ? flags[i] : buf.get(record(i) + 1);
+    }
+
+    private int getMask(int i) {
+        return masks != null ? masks[i] : buf.getInt(record(i) + 4);
+    }
+
+    private long getPosition(int i) {
+        return positions != null ? positions[i] : buf.getLong(record(i) + 24);
+    }
+
+    private int record(int i) {
+        if (i < 0 || i >= skeleton.getNodeCount()) {
+            throw new IndexOutOfBoundsException("node " + i);
+        }
+        return nodesOffset + ReportSnapshot.NODE_SIZE * i;
+    }
+
+    /**
+     * Checks all the nodes of a mapped snapshot, which are otherwise checked as they
+     * are created. Those read in the heap are checked when read.
+     */
+    void check() throws IOException {
+        if (buf != null) {
+            skeleton.check();
+            checkMetrics(buf, skeleton.getNodeCount(), nodesOffset, metrics.capacity());
+        }
+    }
+
+    /**
+     * Checks that the metrics of every node are known ones, within the metrics section.
+     */
+    private static void checkMetrics(ByteBuffer buf, int nodeCount, int nodesOffset, long size) throws IOException {
+        for (int i = 0; i < nodeCount; i++) {
+            if (!hasValidMetrics(buf.get(nodesOffset + ReportSnapshot.NODE_SIZE * i + 1),
+                    buf.getInt(nodesOffset + ReportSnapshot.NODE_SIZE * i + 4),
+                    buf.getLong(nodesOffset + ReportSnapshot.NODE_SIZE * i + 24), size)) {
+                throw new IOException("Corrupted coverage report snapshot");
+            }
+        }
+    }
+
+    private static boolean hasValidMetrics(byte flags, int mask, long position, long size) {
+        boolean fractions = (flags & ReportSnapshot.HAS_FRACTIONS) != 0;
+        return (mask >>> CoverageMetric.all().length) == 0 && position >= 0
+                && position + ReportSnapshot.metricsSize(2 * Integer.bitCount(mask), fractions) <= size;
+    }
+
+    /**
+     * End of the metrics of the node of the given record, relative to the metrics section.
+     */
+    private static long metricsEnd(ByteBuffer buf, int rec) {
+        boolean fractions = (buf.get(rec + 1) & ReportSnapshot.HAS_FRACTIONS) != 0;
+        int counts = 2 * Integer.bitCount(buf.getInt(rec + 4));
+        return buf.getLong(rec + 24) + ReportSnapshot.metricsSize(counts, fractions);
+    }
+}
@@ -0,0 +1,152 @@
+package hudson.plugins.cocoemma;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Loads the {@link CoverageReport}s of the build actions in the background.
+ *
+ * <p>
+ * There is at most one load in flight per action, shared by all the callers asking
+ * for its report. The loads run on a small dedicated pool, so that the pages
+ * only wait for them up to a timeout; other callers wait until they are done.
+ */
+final class ReportLoader {
+
+    /**
+     * Maximum number of reports loaded at the same time.
+     */
+    static final int THREADS = Math.max(1, Integer.getInteger(ReportLoader.class.getName() + ".THREADS", 2));
+
+    /**
+     * Maximum number of loads waiting for a thread. Beyond that, the caller loads the report itself.
+     */
+    static final int QUEUE = Math.max(1, Integer.getInteger(ReportLoader.class.getName() + ".QUEUE", 64));
+
+    /**
+     * How long a page waits for a report before showing that it is loading, in milliseconds.
+     */
+    static final long PAGE_WAIT = Long.getLong(ReportLoader.class.getName() + ".PAGE_WAIT", 2000);
+
+    private static final ConcurrentMap<CocoEmmaBuildAction, Future<CoverageReport>> loads =
+            new ConcurrentHashMap<CocoEmmaBuildAction, Future<CoverageReport>>();
+
+    private static ThreadPoolExecutor executor;
+
+    private ReportLoader() {
+    }
+
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if (executor == null) {
+            executor = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(QUEUE),
+                    new NamingThreadFactory(new DaemonThreadFactory(), "CocoEmma report loader"));
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
+
+    /**
+     * Starts loading the report of the action, unless it is already being loaded.
+     */
+    static Future<CoverageReport> load(CocoEmmaBuildAction action) {
+        return load(action, null);
+    }
+
+    /**
+     * Starts loading the report of the action on the given executor, unless it is
+     * already being loaded.
+     *
+     * @param executor
+     *      null for the pool of this class.
+     */
+    static Future<CoverageReport> load(final CocoEmmaBuildAction action, Executor executor) {
+        Future<CoverageReport> f = loads.get(action);
+        if (f != null) {
+            return f;
+        }
+        FutureTask<CoverageReport> task = new FutureTask<CoverageReport>(new Callable<CoverageReport>() {
+            public CoverageReport call() throws Exception {
+                try {
+                    return action.loadResult();
+                } finally {
+                    // the report is in the cache by now, so later callers do not load it again
+                    loads.remove(action);
+                }
+            }
+        });
+        f = loads.putIfAbsent(action, task);
+        if (f != null) {
+            return f;
+        }
+        try {
+            (executor != null ? executor : getExecutor()).execute(task);
+        } catch (RejectedExecutionException e) {
+            task.run();
+        }
+        return task;
+    }
+
+    static boolean isLoading(CocoEmmaBuildAction action) {
+        return loads.containsKey(action);
+    }
+
+    /**
+     * Loads the report of the action, waiting for it as long as it takes.
+     *
+     * @return
+     *      null if the report could not be loaded.
+     */
+    static CoverageReport get(CocoEmmaBuildAction action) {
+        Future<CoverageReport> f = load(action);
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            LOGGER.log(Level.WARNING, "Failed to load the coverage report of " + action.getBuild(), e.getCause());
+            return null;
+        }
+    }
+
+    /**
+     * Loads the report of the action, waiting for it at most the given time.
+     *
+     * @return
+     *      null if the report could not be loaded, or is not loaded yet.
+     *      In the latter case the load goes on and {@link #isLoading} is true.
+     */
+    static CoverageReport get(CocoEmmaBuildAction action, long timeout, TimeUnit unit) {
+        Future<CoverageReport> f = load(action);
+        try {
+            return f.get(timeout, unit);
+        } catch (TimeoutException e) {
+            LOGGER.fine("Still loading the coverage report of " + action.getBuild());
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            LOGGER.log(Level.WARNING, "Failed to load the coverage report of " + action.getBuild(), e.getCause());
+            return null;
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ReportLoader.class.getName());
+}
@@ -0,0 +1,32 @@
+package hudson.plugins.cocoemma;
+
+import hudson.model.Run;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Shown in place of the {@link CoverageReport} of a build while it is being loaded.
+ * The page reloads itself until the report is available, and is also shown for the
+ * pages of the packages, files and classes below the report.
+ */
+public final class ReportLoading {
+
+    private final CocoEmmaBuildAction action;
+
+    ReportLoading(CocoEmmaBuildAction action) {
+        this.action = action;
+    }
+
+    public CocoEmmaBuildAction getAction() {
+        return action;
+    }
+
+    public Run<?,?> getBuild() {
+        return action.getBuild();
+    }
+
+    public Object getDynamic(String token, StaplerRequest req, StaplerResponse rsp) {
+        return this;
+    }
+}
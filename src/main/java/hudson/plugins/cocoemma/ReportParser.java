@@ -0,0 +1,115 @@
+package hudson.plugins.cocoemma;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Streaming (StAX) builder of the coverage report tree.
+ *
+ * <p>
+ * Walks the EMMA XML once and creates the {@link PackageReport}, {@link SourceFileReport},
+ * {@link ClassReport} and {@link MethodReport} nodes directly, without the bean
+ * introspection and reflective calls of the {@code Digester} rules. The resulting tree
+ * is identical to the one built by the digester.
+ */
+final class ReportParser {
+
+    private final XMLInputFactory factory;
+
+    /**
+     * Reused for every {@code <coverage>} element, since it only carries the
+     * attributes from the parser to the report node.
+     */
+    private final CoverageElement coverage = new CoverageElement();
+
+    ReportParser(boolean secure) {
+        factory = XMLInputFactory.newFactory();
+        if (secure) {
+            // same restrictions as the digester: no DTD, no external entities
+            factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+            factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        }
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, false);
+    }
+
+    /**
+     * Reads one EMMA report and adds its content to the given root.
+     */
+    void parse(InputStream in, CoverageReport root) throws IOException {
+        XMLStreamReader reader = null;
+        try {
+            reader = factory.createXMLStreamReader(in);
+            build(reader, root);
+        } catch (XMLStreamException e) {
+            throw new IOException("Failed to parse XML", e);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Failed to parse XML", e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException e) {
+                    // the underlying stream is owned by the caller
+                }
+            }
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private void build(XMLStreamReader reader, CoverageReport root) throws XMLStreamException, IOException {
+        Deque<AbstractReport<?,?>> stack = new ArrayDeque<AbstractReport<?,?>>();
+        AbstractReport<?,?> current = root;
+
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                String tag = reader.getLocalName();
+                if ("coverage".equals(tag)) {
+                    coverage.setType(reader.getAttributeValue(null, "type"));
+                    coverage.setValue(reader.getAttributeValue(null, "value"));
+                    current.addCoverage(coverage);
+                    continue;
+                }
+                AbstractReport<?,?> node = createNode(tag);
+                if (node != null) {
+                    node.setName(reader.getAttributeValue(null, "name"));
+                    stack.push(current);
+                    current = node;
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                if (isNode(reader.getLocalName())) {
+                    AbstractReport<?,?> parent = stack.pop();
+                    // like the digester "add" rule, the child is attached once complete
+                    ((AggregatedReport) parent).add(current);
+                    current = parent;
+                }
+            }
+        }
+    }
+
+    private static AbstractReport<?,?> createNode(String tag) {
+        if ("package".equals(tag)) {
+            return new PackageReport();
+        } else if ("srcfile".equals(tag)) {
+            return new SourceFileReport();
+        } else if ("class".equals(tag)) {
+            return new ClassReport();
+        } else if ("method".equals(tag)) {
+            return new MethodReport();
+        }
+        return null;
+    }
+
+    private static boolean isNode(String tag) {
+        return "package".equals(tag) || "srcfile".equals(tag)
+            || "class".equals(tag) || "method".equals(tag);
+    }
+}
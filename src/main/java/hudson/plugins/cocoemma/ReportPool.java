@@ -0,0 +1,238 @@
+package hudson.plugins.cocoemma;
+
+import hudson.model.Job;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Folder of a job with one gzipped copy of each distinct report archived by its builds,
+ * named after the SHA-256 of the XML. The reports of the build folders are hard links
+ * to these copies, or plain copies where links are not supported.
+ *
+ * <p>
+ * Each build folder also lists the hashes of its reports, in order, so that the next
+ * build only gets the reports that changed from the agent.
+ */
+final class ReportPool {
+
+    /**
+     * Name of the pool in the folder of the job.
+     */
+    static final String FOLDER_NAME = "cocoemma-pool";
+
+    /**
+     * Name of the list of hashes in the build folder.
+     */
+    static final String HASHES = "reports.sha256";
+
+    static final Pattern HASH = Pattern.compile("[0-9a-f]{64}");
+
+    /**
+     * Copies that no build links to are deleted once they are this old, so that a copy
+     * is not deleted before it is linked.
+     */
+    private static final long PRUNE_AGE = TimeUnit.HOURS.toMillis(1);
+
+    private ReportPool() {
+    }
+
+    static File getFolder(Job<?,?> job) {
+        return new File(job.getRootDir(), FOLDER_NAME);
+    }
+
+    static File getFile(File pool, String hash) {
+        if (!HASH.matcher(hash).matches()) {
+            throw new IllegalArgumentException("Not a SHA-256: " + hash);
+        }
+        return new File(pool, hash + ".xml" + ReportStorage.GZ);
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Reads the hashes of the reports of a build folder.
+     *
+     * @return null if they are not known
+     */
+    static String[] readHashes(File folder) {
+        File f = new File(folder, HASHES);
+        if (!f.exists()) {
+            return null;
+        }
+        try {
+            List<String> hashes = Files.readAllLines(f.toPath(), StandardCharsets.US_ASCII);
+            for (String h : hashes) {
+                if (!HASH.matcher(h).matches()) {
+                    return null;
+                }
+            }
+            return hashes.toArray(new String[hashes.size()]);
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Failed to read " + f, e);
+            return null;
+        }
+    }
+
+    static void writeHashes(File folder, String[] hashes) throws IOException {
+        Files.write(new File(folder, HASHES).toPath(), Arrays.asList(hashes), StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Gets the hashes that are in the pool. Their files are touched, so that a concurrent
+     * {@link #prune} does not delete them before they are linked.
+     */
+    static String[] pooled(File pool, String[] hashes) {
+        if (pool == null || hashes == null) {
+            return new String[0];
+        }
+        long now = System.currentTimeMillis();
+        List<String> found = new ArrayList<String>();
+        for (String h : hashes) {
+            if (getFile(pool, h).setLastModified(now)) {
+                found.add(h);
+            }
+        }
+        return found.toArray(new String[found.size()]);
+    }
+
+    /**
+     * Adds a gzipped report to the pool, unless it is already there.
+     *
+     * @param tmp
+     *      the report, which is moved or deleted.
+     */
+    static void add(File pool, String hash, File tmp) throws IOException {
+        File f = getFile(pool, hash);
+        if (f.exists()) {
+            Files.delete(tmp.toPath());
+            return;
+        }
+        Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Puts a report of the pool in a build folder, as a hard link if possible.
+     */
+    static void link(File pool, String hash, File target) throws IOException {
+        File source = getFile(pool, hash);
+        if (!linkOrCopy(source, target)) {
+            // the copy is not counted as a link, so keep it from being pruned for a while
+            source.setLastModified(System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Replaces the target with a hard link to the source, or a copy where links are
+     * not supported.
+     *
+     * @return false if the file was copied
+     */
+    static boolean linkOrCopy(File source, File target) throws IOException {
+        Files.deleteIfExists(target.toPath());
+        try {
+            Files.createLink(target.toPath(), source.toPath());
+            return true;
+        } catch (UnsupportedOperationException e) {
+            // copied below
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Failed to link " + target + " to " + source, e);
+        }
+        Files.copy(source.toPath(), target.toPath());
+        return false;
+    }
+
+    /**
+     * Deletes the reports that no build links to anymore. Where the number of links
+     * of a file is not known, such as on Windows, deletes those that no build lists.
+     *
+     * @param builds
+     *      the folder of the builds of the job.
+     */
+    static void prune(File pool, File builds) {
+        prune(pool, builds, true);
+    }
+
+    /**
+     * @param links
+     *      whether to use the number of links of the files.
+     */
+    static void prune(File pool, File builds, boolean links) {
+        File[] files = pool.listFiles();
+        if (files == null) {
+            return;
+        }
+        long old = System.currentTimeMillis() - PRUNE_AGE;
+        Set<String> listed = null;
+        for (File f : files) {
+            if (f.lastModified() >= old) {
+                continue;
+            }
+            try {
+                if (links) {
+                    try {
+                        if (((Number) Files.getAttribute(f.toPath(), "unix:nlink")).intValue() <= 1) {
+                            Files.delete(f.toPath());
+                        }
+                        continue;
+                    } catch (UnsupportedOperationException e) {
+                        links = false;
+                    } catch (IllegalArgumentException e) {
+                        links = false;
+                    }
+                }
+                if (listed == null) {
+                    listed = listed(builds);
+                }
+                String name = f.getName();
+                String suffix = ".xml" + ReportStorage.GZ;
+                // also the temporary files left by an interrupted build
+                if (!name.endsWith(suffix) || !listed.contains(name.substring(0, name.length() - suffix.length()))) {
+                    Files.delete(f.toPath());
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Failed to prune " + f, e);
+            }
+        }
+    }
+
+    /**
+     * Gets the hashes listed by the builds of the job.
+     */
+    private static Set<String> listed(File builds) {
+        Set<String> listed = new HashSet<String>();
+        File[] dirs = builds.listFiles();
+        if (dirs != null) {
+            for (File d : dirs) {
+                // see CocoEmmaPublisher.getEmmaReport
+                String[] hashes = readHashes(new File(d, "cocoemma"));
+                if (hashes != null) {
+                    listed.addAll(Arrays.asList(hashes));
+                }
+            }
+        }
+        return listed;
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ReportPool.class.getName());
+}
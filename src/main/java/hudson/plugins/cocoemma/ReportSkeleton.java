@@ -0,0 +1,317 @@
+package hudson.plugins.cocoemma;
+
+import hudson.Util;
+
+import java.io.IOException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The structure of a {@link ReportSnapshot}: the names of the nodes, their kinds and
+ * the children of each node, in order. The metrics are not part of it.
+ *
+ * <p>
+ * Consecutive builds of a job usually have the same packages, classes and methods, so
+ * a skeleton is shared by all the {@link ReportIndex}es whose snapshots have the same
+ * structure hash, and the nodes created from them share their name strings.
+ *
+ * <p>
+ * The names and the node records stay in the snapshot it was first read from, mapped
+ * or copied in the heap, and the names are only decoded when used. The records are
+ * checked as the nodes are created, or all at once by {@link #check()}.
+ */
+final class ReportSkeleton {
+
+    private final String key;
+
+    /**
+     * The names section followed by the node records, only accessed with absolute gets.
+     */
+    private final ByteBuffer struct;
+    private final int nodeCount;
+    private final int nameCount;
+
+    /**
+     * Offset of the node records in {@link #struct}, the size of the names section.
+     */
+    private final int nodesOffset;
+
+    /**
+     * The names decoded so far.
+     */
+    private final String[] names;
+
+    private volatile boolean checked;
+    private final AtomicBoolean charged = new AtomicBoolean();
+
+    private ReportSkeleton(String key, ByteBuffer struct, int nodeCount, int nameCount, int nodesOffset) {
+        this.key = key;
+        this.struct = struct;
+        this.nodeCount = nodeCount;
+        this.nameCount = nameCount;
+        this.nodesOffset = nodesOffset;
+        this.names = new String[nameCount];
+    }
+
+    int getNodeCount() {
+        return nodeCount;
+    }
+
+    byte getKind(int i) {
+        return struct.get(record(i));
+    }
+
+    String getName(int i) {
+        return name(struct.getInt(record(i) + 8));
+    }
+
+    int getFirstChild(int i) {
+        return struct.getInt(record(i) + 16);
+    }
+
+    int getChildCount(int i) {
+        return struct.getInt(record(i) + 20);
+    }
+
+    private int record(int i) {
+        if (i < 0 || i >= nodeCount) {
+            throw new IllegalStateException(CORRUPTED + ": node " + i);
+        }
+        return nodesOffset + ReportSnapshot.NODE_SIZE * i;
+    }
+
+    private String name(int n) {
+        if (n < 0 || n >= nameCount) {
+            throw new IllegalStateException(CORRUPTED + ": name " + n);
+        }
+        String s = names[n];
+        if (s == null) {
+            int data = 4 * (nameCount + 1);
+            int start = struct.getInt(4 * n);
+            int end = struct.getInt(4 * (n + 1));
+            if (start < 0 || end < start || (long) data + end > nodesOffset) {
+                throw new IllegalStateException(CORRUPTED + ": name " + n);
+            }
+            byte[] b = new byte[end - start];
+            ByteBuffer d = struct.duplicate();
+            d.position(data + start);
+            d.get(b);
+            // the same string may be decoded twice by concurrent requests, which is harmless
+            names[n] = s = new String(b, StandardCharsets.UTF_8);
+        }
+        return s;
+    }
+
+    /**
+     * Checks the record of a node, before the node is created: its name, its children,
+     * and that it is of the kind its parent has children of.
+     */
+    void check(int i) {
+        int rec = record(i);
+        byte kind = struct.get(rec);
+        int name = struct.getInt(rec + 8);
+        int first = struct.getInt(rec + 16);
+        int count = struct.getInt(rec + 20);
+        boolean ok = name >= 0 && name < nameCount && count >= 0
+                && (count == 0 || first > i && (long) first + count <= nodeCount);
+        if (i == 0) {
+            ok &= kind == ReportSnapshot.ROOT;
+        } else {
+            int parent = struct.getInt(rec + 12);
+            ok &= parent >= 0 && parent < i && kind >= ReportSnapshot.PACKAGE && kind <= ReportSnapshot.METHOD
+                    && kind == getKind(parent) + 1
+                    && i >= getFirstChild(parent) && i < getFirstChild(parent) + getChildCount(parent);
+        }
+        if (!ok) {
+            throw new IllegalStateException(CORRUPTED + ": node " + i);
+        }
+    }
+
+    /**
+     * Checks all the names and node records.
+     */
+    void check() throws IOException {
+        if (checked) {
+            return;
+        }
+        try {
+            int data = 4 * (nameCount + 1);
+            int start = struct.getInt(0);
+            for (int n = 0; n < nameCount; n++) {
+                int end = struct.getInt(4 * (n + 1));
+                if (start < 0 || end < start || (long) data + end > nodesOffset) {
+                    throw new IOException(CORRUPTED);
+                }
+                start = end;
+            }
+            for (int i = 0; i < nodeCount; i++) {
+                check(i);
+            }
+        } catch (RuntimeException e) {
+            throw new IOException(CORRUPTED, e);
+        }
+        checked = true;
+    }
+
+    /**
+     * Rough heap size of the skeleton, without the names, which are counted with the
+     * nodes.
+     */
+    long getEstimatedSize() {
+        return 64 + (struct.isDirect() ? 0 : struct.capacity()) + 8L * nameCount;
+    }
+
+    /**
+     * Returns true once, for the index whose {@link ReportCache} size includes the skeleton.
+     */
+    boolean charge() {
+        return charged.compareAndSet(false, true);
+    }
+
+    /**
+     * Finds the child of the given node by name. The children are written in the
+     * order of their names, so this is a binary search.
+     *
+     * @return
+     *      -1 if there is no such child.
+     */
+    int findChild(int i, String name) {
+        int low = getFirstChild(i);
+        int high = low + getChildCount(i) - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int c = getName(mid).compareTo(name);
+            if (c < 0) {
+                low = mid + 1;
+            } else if (c > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Computes the structure hash of a snapshot, over its names and the structural
+     * fields of its node records, as {@link ReportSnapshot#write} does.
+     */
+    static byte[] hash(ByteBuffer buf, int nodeCount, int namesOffset, int nodesOffset) {
+        MessageDigest digest = ReportPool.sha256();
+        byte[] b = new byte[nodesOffset - namesOffset];
+        ByteBuffer names = buf.duplicate();
+        names.position(namesOffset);
+        names.get(b);
+        digest.update(b);
+        byte[] record = new byte[ReportSnapshot.NODE_SIZE];
+        ByteBuffer nodes = buf.duplicate();
+        nodes.position(nodesOffset);
+        for (int i = 0; i < nodeCount; i++) {
+            nodes.get(record);
+            updateStructure(digest, record);
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Adds the kind, name, parent and children of a node record to the hash.
+     */
+    static void updateStructure(MessageDigest digest, byte[] record) {
+        digest.update(record[0]);
+        digest.update(record, 8, 16);
+    }
+
+    /**
+     * Gets the skeleton of a snapshot, shared with the other snapshots of the same
+     * structure that are in use.
+     *
+     * @param hash
+     *      the structure hash of the snapshot.
+     */
+    static ReportSkeleton of(byte[] hash, ByteBuffer buf, int nodeCount, int nameCount, int namesOffset, int nodesOffset)
+            throws IOException {
+        String key = Util.toHexString(hash);
+        synchronized (SKELETONS) {
+            expunge();
+            Ref ref = SKELETONS.get(key);
+            ReportSkeleton s = ref != null ? ref.get() : null;
+            if (s != null && s.matches(nodeCount, nameCount, nodesOffset - namesOffset)) {
+                return s;
+            }
+        }
+        ReportSkeleton s = create(key, buf, nodeCount, nameCount, namesOffset, nodesOffset);
+        synchronized (SKELETONS) {
+            Ref ref = SKELETONS.get(key);
+            ReportSkeleton existing = ref != null ? ref.get() : null;
+            if (existing != null && existing.matches(nodeCount, nameCount, nodesOffset - namesOffset)) {
+                return existing;
+            }
+            SKELETONS.put(key, new Ref(s));
+        }
+        return s;
+    }
+
+    /**
+     * Checks the sizes of a snapshot with the same hash, in case its trailer is wrong.
+     */
+    private boolean matches(int nodeCount, int nameCount, int namesSize) {
+        return this.nodeCount == nodeCount && this.nameCount == nameCount && nodesOffset == namesSize;
+    }
+
+    /**
+     * Keeps the structure of the snapshot, in place if it is mapped.
+     */
+    private static ReportSkeleton create(String key, ByteBuffer buf, int nodeCount, int nameCount, int namesOffset,
+            int nodesOffset) throws IOException {
+        if (4L * (nameCount + 1) > nodesOffset - namesOffset) {
+            throw new IOException(CORRUPTED);
+        }
+        ByteBuffer d = buf.duplicate();
+        d.position(namesOffset);
+        d.limit(nodesOffset + ReportSnapshot.NODE_SIZE * nodeCount);
+        ByteBuffer struct;
+        if (buf.isDirect()) {
+            struct = d.slice();
+        } else {
+            byte[] b = new byte[d.remaining()];
+            d.get(b);
+            struct = ByteBuffer.wrap(b);
+        }
+        return new ReportSkeleton(key, struct, nodeCount, nameCount, nodesOffset - namesOffset);
+    }
+
+    /**
+     * Drops the entries of the skeletons no longer in use.
+     */
+    private static void expunge() {
+        Ref ref;
+        while ((ref = (Ref) QUEUE.poll()) != null) {
+            if (SKELETONS.get(ref.key) == ref) {
+                SKELETONS.remove(ref.key);
+            }
+        }
+    }
+
+    private static final class Ref extends WeakReference<ReportSkeleton> {
+        final String key;
+
+        Ref(ReportSkeleton s) {
+            super(s, QUEUE);
+            this.key = s.key;
+        }
+    }
+
+    /**
+     * Skeletons by structure hash, as long as an index uses them.
+     */
+    private static final Map<String, Ref> SKELETONS = new HashMap<String, Ref>();
+    private static final ReferenceQueue<ReportSkeleton> QUEUE = new ReferenceQueue<ReportSkeleton>();
+
+    private static final String CORRUPTED = "Corrupted coverage report snapshot";
+}
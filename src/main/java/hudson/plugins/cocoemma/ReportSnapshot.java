@@ -0,0 +1,273 @@
+package hudson.plugins.cocoemma;
+
+import hudson.FilePath;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary form of a finished {@link CoverageReport} tree, stored next to the
+ * XML reports of a build so that the tree can be reloaded without parsing the XML.
+ *
+ * <p>
+ * Layout, big endian:
+ * <pre>
+ * header   int magic, int version, int nodeCount, int nameCount,
+ *          long namesOffset, long nodesOffset, long metricsOffset
+ * names    int[nameCount+1] offsets into the UTF-8 bytes that follow
+ * nodes    nodeCount fixed-width records in breadth first order, the root first:
+ *          byte kind, byte flags, short unused, int metrics mask, int name,
+ *          int parent, int firstChild, int childCount, long metrics position
+ * metrics  for each node, the numerator/denominator counts of its metrics as longs,
+ *          followed by the fractions as doubles if the node has {@link #HAS_FRACTIONS}
+ * trailer  int {@link #TRAILER}, the SHA-256 structure hash of the {@link ReportSkeleton}
+ * </pre>
+ * The children of a node are consecutive records, and the names are deduplicated.
+ * The trailer is missing from the older snapshots, whose hash is computed when read.
+ * A snapshot of another version is not read; the XML is parsed instead.
+ *
+ * @see ReportIndex
+ */
+final class ReportSnapshot {
+
+    /**
+     * Name of the snapshot file in the {@code cocoemma} folder of a build.
+     */
+    static final String FILE_NAME = "report.snapshot";
+
+    static final int MAGIC = 0x43454d53; // "CEMS"
+    static final int VERSION = 1;
+
+    static final int TRAILER = 0x43454d4b; // "CEMK"
+
+    static final int HEADER_SIZE = 40;
+    static final int TRAILER_SIZE = 4 + 32;
+    static final int NODE_SIZE = 32;
+
+    static final byte ROOT = 0, PACKAGE = 1, SOURCE_FILE = 2, CLASS = 3, METHOD = 4;
+
+    static final byte FAILED = 1, HAS_FRACTIONS = 2;
+
+    private ReportSnapshot() {
+    }
+
+    /**
+     * Checks that the snapshot exists and is not older than any of the XML reports.
+     */
+    static boolean isUpToDate(File snapshot, FilePath... reports) throws IOException, InterruptedException {
+        long time = snapshot.lastModified();
+        if (time == 0) {
+            return false;
+        }
+        for (FilePath f : reports) {
+            if (f.lastModified() > time) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the snapshot of the tree, replacing the file atomically.
+     */
+    static void write(CoverageReport root, File file) throws IOException {
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        OutputStream out = new FileOutputStream(tmp);
+        try {
+            write(root, out);
+        } finally {
+            out.close();
+        }
+        replace(tmp, file);
+    }
+
+    /**
+     * Writes a snapshot as it is, such as the one sent by the agent,
+     * replacing the file atomically.
+     */
+    static void write(byte[] snapshot, File file) throws IOException {
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        Files.write(tmp.toPath(), snapshot);
+        replace(tmp, file);
+    }
+
+    private static void replace(File tmp, File file) throws IOException {
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    static void write(CoverageReport root, OutputStream os) throws IOException {
+        // breadth first, so that the children of a node are consecutive
+        List<AbstractReport<?,?>> nodes = new ArrayList<AbstractReport<?,?>>();
+        List<Integer> parents = new ArrayList<Integer>();
+        nodes.add(root);
+        parents.add(-1);
+        for (int i = 0; i < nodes.size(); i++) {
+            AbstractReport<?,?> n = nodes.get(i);
+            if (n instanceof AggregatedReport) {
+                for (AbstractReport<?,?> c : ((AggregatedReport<?,?,?>) n).getChildren().values()) {
+                    nodes.add(c);
+                    parents.add(i);
+                }
+            }
+        }
+
+        Map<String, Integer> nameIndex = new HashMap<String, Integer>();
+        List<byte[]> names = new ArrayList<byte[]>();
+        int[] nodeNames = new int[nodes.size()];
+        long namesSize = 0;
+        for (int i = 0; i < nodes.size(); i++) {
+            String name = nodes.get(i).getName();
+            if (name == null) {
+                name = "";
+            }
+            Integer idx = nameIndex.get(name);
+            if (idx == null) {
+                idx = names.size();
+                nameIndex.put(name, idx);
+                byte[] b = name.getBytes(StandardCharsets.UTF_8);
+                names.add(b);
+                namesSize += b.length;
+            }
+            nodeNames[i] = idx;
+        }
+
+        long namesOffset = HEADER_SIZE;
+        long nodesOffset = namesOffset + 4L * (names.size() + 1) + namesSize;
+        long metricsOffset = nodesOffset + (long) NODE_SIZE * nodes.size();
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os, 64 * 1024));
+        MessageDigest structure = ReportPool.sha256();
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(nodes.size());
+        out.writeInt(names.size());
+        out.writeLong(namesOffset);
+        out.writeLong(nodesOffset);
+        out.writeLong(metricsOffset);
+
+        // the names section is all structure
+        DataOutputStream hashed = new DataOutputStream(new DigestOutputStream(out, structure));
+        int offset = 0;
+        for (byte[] b : names) {
+            hashed.writeInt(offset);
+            offset += b.length;
+        }
+        hashed.writeInt(offset);
+        for (byte[] b : names) {
+            hashed.write(b);
+        }
+        hashed.flush();
+
+        long position = 0;
+        int next = 1;
+        ByteBuffer record = ByteBuffer.allocate(NODE_SIZE);
+        for (int i = 0; i < nodes.size(); i++) {
+            AbstractReport<?,?> n = nodes.get(i);
+            int childCount = n instanceof AggregatedReport ? ((AggregatedReport<?,?,?>) n).getChildren().size() : 0;
+            int flags = (n.isFailed() ? FAILED : 0) | (n.getFractions() != null ? HAS_FRACTIONS : 0);
+            record.clear();
+            record.put(kindOf(n));
+            record.put((byte) flags);
+            record.putShort((short) 0);
+            record.putInt(n.getMetricMask());
+            record.putInt(nodeNames[i]);
+            record.putInt(parents.get(i));
+            record.putInt(childCount == 0 ? -1 : next);
+            record.putInt(childCount);
+            record.putLong(position);
+            out.write(record.array());
+            ReportSkeleton.updateStructure(structure, record.array());
+            next += childCount;
+            position += metricsSize(n.getCounts().length, (flags & HAS_FRACTIONS) != 0);
+        }
+
+        for (AbstractReport<?,?> n : nodes) {
+            for (long v : n.getCounts()) {
+                out.writeLong(v);
+            }
+            if (n.getFractions() != null) {
+                for (double v : n.getFractions()) {
+                    out.writeDouble(v);
+                }
+            }
+        }
+        out.writeInt(TRAILER);
+        out.write(structure.digest());
+        out.flush();
+    }
+
+    /**
+     * Opens a snapshot. Only the root is read; the other nodes are created on access.
+     *
+     * @throws IOException
+     *      if the file is not a snapshot of the current version, or is damaged.
+     */
+    static CoverageReport read(CocoEmmaBuildAction action, File file) throws IOException {
+        return ReportIndex.open(file).createRoot(action);
+    }
+
+    /**
+     * Checks that the snapshot exists and can be opened, as {@link #read(CocoEmmaBuildAction, File)} does.
+     */
+    static boolean isReadable(File file) {
+        if (!file.isFile()) {
+            return false;
+        }
+        try {
+            ReportIndex.open(file).check();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    static CoverageReport read(CocoEmmaBuildAction action, ByteBuffer buf) throws IOException {
+        return new ReportIndex(buf).createRoot(action);
+    }
+
+    static long metricsSize(int counts, boolean fractions) {
+        return 8L * counts * (fractions ? 2 : 1);
+    }
+
+    static byte kindOf(AbstractReport<?,?> n) {
+        if (n instanceof CoverageReport) {
+            return ROOT;
+        } else if (n instanceof PackageReport) {
+            return PACKAGE;
+        } else if (n instanceof SourceFileReport) {
+            return SOURCE_FILE;
+        } else if (n instanceof ClassReport) {
+            return CLASS;
+        }
+        return METHOD;
+    }
+
+    static AbstractReport<?,?> createNode(byte kind) {
+        switch (kind) {
+        case PACKAGE:     return new PackageReport();
+        case SOURCE_FILE: return new SourceFileReport();
+        case CLASS:       return new ClassReport();
+        case METHOD:      return new MethodReport();
+        default:          throw new IllegalArgumentException("Invalid node kind: " + kind);
+        }
+    }
+}
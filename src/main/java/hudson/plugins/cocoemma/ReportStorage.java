@@ -0,0 +1,196 @@
+package hudson.plugins.cocoemma;
+
+import hudson.FilePath;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Job;
+import jenkins.model.Jenkins;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The XML reports archived in the build folders. They are stored gzipped, as
+ * {@code coverageN.xml.gz}; the {@code coverageN.xml} files of older builds are
+ * still read, and compressed in the background after startup.
+ */
+final class ReportStorage {
+
+    static final String GZ = ".gz";
+
+    /**
+     * Set to true to leave the reports of older builds uncompressed.
+     */
+    static final boolean NO_MIGRATION = Boolean.getBoolean(ReportStorage.class.getName() + ".NO_MIGRATION");
+
+    /**
+     * How fast the reports of older builds are compressed, in KB read per second.
+     */
+    static final long MIGRATION_RATE = Math.max(1, Long.getLong(ReportStorage.class.getName() + ".MIGRATION_RATE", 4096));
+
+    private ReportStorage() {
+    }
+
+    /**
+     * Lists the reports of a build folder. When a report is there both compressed and
+     * not, while it is being compressed, only the uncompressed one is listed.
+     */
+    static FilePath[] list(File folder) {
+        File[] files = folder.listFiles();
+        if (files == null) {
+            return new FilePath[0];
+        }
+        Arrays.sort(files);
+        List<FilePath> reports = new ArrayList<FilePath>();
+        for (File f : files) {
+            String name = f.getName();
+            if (name.endsWith("xml")
+                    || name.endsWith("xml" + GZ) && !new File(folder, name.substring(0, name.length() - GZ.length())).exists()) {
+                reports.add(new FilePath(f));
+            }
+        }
+        return reports.toArray(new FilePath[reports.size()]);
+    }
+
+    /**
+     * Opens a report, decompressing it if needed.
+     */
+    static InputStream open(FilePath report) throws IOException, InterruptedException {
+        InputStream in = report.read();
+        if (!report.getName().endsWith(GZ)) {
+            return in;
+        }
+        try {
+            return new GZIPInputStream(in, 64 * 1024);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens the file a report is stored in, gzipped.
+     *
+     * @param name
+     *      the name of the XML report, without {@link #GZ}.
+     */
+    static OutputStream create(File folder, String name) throws IOException {
+        return new GZIPOutputStream(new FileOutputStream(new File(folder, name + GZ)), 64 * 1024);
+    }
+
+    /**
+     * Replaces an XML report with its gzipped copy, which keeps the modification time
+     * of the report so that the {@link ReportSnapshot} is still up to date.
+     *
+     * @return the size of the report
+     */
+    static long compress(File xml) throws IOException {
+        File gz = new File(xml.getPath() + GZ);
+        File tmp = new File(xml.getPath() + GZ + ".tmp");
+        long size = xml.length();
+        InputStream in = new FileInputStream(xml);
+        try {
+            OutputStream out = new GZIPOutputStream(new FileOutputStream(tmp), 64 * 1024);
+            try {
+                byte[] buf = new byte[64 * 1024];
+                int n;
+                while ((n = in.read(buf)) > 0) {
+                    out.write(buf, 0, n);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        tmp.setLastModified(xml.lastModified());
+        Files.move(tmp.toPath(), gz.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        if (!xml.delete()) {
+            throw new IOException("Failed to delete " + xml);
+        }
+        return size;
+    }
+
+    /**
+     * Compresses the reports of the older builds, on a daemon thread of minimum priority.
+     * Once all of them are, a marker file in the Jenkins home skips this at the next starts.
+     */
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void migrate() {
+        final File marker = new File(Jenkins.get().getRootDir(), ReportStorage.class.getName() + ".migrated");
+        if (NO_MIGRATION || marker.exists()) {
+            return;
+        }
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    boolean done = true;
+                    for (Job<?,?> job : Jenkins.get().allItems(Job.class)) {
+                        done &= migrate(job.getBuildDir());
+                    }
+                    if (done) {
+                        marker.createNewFile();
+                    }
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to create " + marker, e);
+                } catch (InterruptedException e) {
+                    LOGGER.fine("Stopped compressing the coverage reports");
+                }
+            }
+        }, "CocoEmma report compression");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        t.start();
+    }
+
+    /**
+     * Compresses the reports of the builds in the folder, at {@link #MIGRATION_RATE}.
+     *
+     * @return false if a report could not be compressed
+     */
+    static boolean migrate(File buildDir) throws InterruptedException {
+        boolean done = true;
+        File[] builds = buildDir.listFiles();
+        if (builds == null) {
+            return done;
+        }
+        for (File build : builds) {
+            // build numbers may be symbolic links to the build folders
+            if (Files.isSymbolicLink(build.toPath())) {
+                continue;
+            }
+            File[] reports = new File(build, "cocoemma").listFiles();
+            if (reports == null) {
+                continue;
+            }
+            for (File xml : reports) {
+                if (!xml.getName().endsWith(".xml")) {
+                    continue;
+                }
+                try {
+                    long size = compress(xml);
+                    Thread.sleep(size * 1000 / (MIGRATION_RATE * 1024));
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to compress " + xml, e);
+                    done = false;
+                }
+            }
+        }
+        return done;
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ReportStorage.class.getName());
+}
@@ -0,0 +1,233 @@
+package hudson.plugins.cocoemma;
+
+import hudson.XmlFile;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Loads reports into the {@link ReportCache} before they are asked for: after a build
+ * is published, and at startup for the newest builds of the recently viewed jobs.
+ *
+ * <p>
+ * The reports are loaded one at a time by default, on a daemon thread of minimum
+ * priority. Warming is best effort: when too many reports are waiting, the others
+ * are dropped.
+ */
+final class ReportWarmer {
+
+    static final boolean DISABLED = Boolean.getBoolean(ReportWarmer.class.getName() + ".DISABLED");
+
+    /**
+     * Maximum number of reports warmed at the same time.
+     */
+    static final int THREADS = Math.max(1, Integer.getInteger(ReportWarmer.class.getName() + ".THREADS", 1));
+
+    /**
+     * Number of recently viewed jobs remembered across restarts.
+     */
+    static final int JOBS = Math.max(0, Integer.getInteger(ReportWarmer.class.getName() + ".JOBS", 20));
+
+    /**
+     * Number of builds of each of these jobs warmed at startup, newest first.
+     */
+    static final int BUILDS = Math.max(0, Integer.getInteger(ReportWarmer.class.getName() + ".BUILDS", 1));
+
+    /**
+     * Number of builds of each job looked at beyond those, so that a job without recent
+     * coverage does not have its whole history loaded.
+     */
+    private static final int SCANNED = 10;
+
+    private static final RecentJobs recentJobs = new RecentJobs(JOBS);
+
+    private static final AtomicBoolean saveScheduled = new AtomicBoolean();
+
+    private static ThreadPoolExecutor executor;
+
+    private ReportWarmer() {
+    }
+
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if (executor == null) {
+            final ThreadFactory factory = new NamingThreadFactory(new DaemonThreadFactory(), "CocoEmma report warmer");
+            executor = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(256),
+                    new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            Thread t = factory.newThread(r);
+                            t.setPriority(Thread.MIN_PRIORITY);
+                            return t;
+                        }
+                    },
+                    new ThreadPoolExecutor.DiscardPolicy());
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
+
+    /**
+     * Loads the report of the action in the background, unless it is cached.
+     */
+    static void warm(final CocoEmmaBuildAction action) {
+        if (DISABLED) {
+            return;
+        }
+        getExecutor().execute(new Runnable() {
+            public void run() {
+                warmNow(action);
+            }
+        });
+    }
+
+    private static void warmNow(CocoEmmaBuildAction action) {
+        if (ReportCache.get().contains(action)) {
+            return;
+        }
+        // shares the load with the requests for the same report, on this thread
+        ReportLoader.load(action, DIRECT);
+    }
+
+    private static final Executor DIRECT = new Executor() {
+        public void execute(Runnable r) {
+            r.run();
+        }
+    };
+
+    /**
+     * Remembers that the report of a build of the job was viewed.
+     */
+    static void viewed(Job<?,?> job) {
+        if (DISABLED || job == null || !recentJobs.add(job.getFullName())) {
+            return;
+        }
+        if (saveScheduled.compareAndSet(false, true)) {
+            getExecutor().execute(new Runnable() {
+                public void run() {
+                    saveScheduled.set(false);
+                    try {
+                        recentJobs.save(getRecentJobsFile());
+                    } catch (IOException e) {
+                        LOGGER.log(Level.FINE, "Failed to save the recently viewed jobs", e);
+                    }
+                }
+            });
+        }
+    }
+
+    private static XmlFile getRecentJobsFile() {
+        return new XmlFile(new File(Jenkins.get().getRootDir(), ReportWarmer.class.getName() + ".xml"));
+    }
+
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void warmRecentJobs() {
+        if (DISABLED || BUILDS == 0) {
+            return;
+        }
+        getExecutor().execute(new Runnable() {
+            public void run() {
+                try {
+                    recentJobs.load(getRecentJobsFile());
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINE, "Failed to read the recently viewed jobs", e);
+                    return;
+                }
+                // kept as text by the earlier versions
+                new File(Jenkins.get().getRootDir(), ReportWarmer.class.getName() + ".txt").delete();
+                for (String name : recentJobs.list()) {
+                    Job<?,?> job = Jenkins.get().getItemByFullName(name, Job.class);
+                    if (job == null) {
+                        continue;
+                    }
+                    int n = 0;
+                    int scanned = 0;
+                    for (Run<?,?> b = job.getLastBuild(); b != null && n < BUILDS && scanned++ < BUILDS + SCANNED;
+                            b = b.getPreviousBuild()) {
+                        CocoEmmaBuildAction a = b.getAction(CocoEmmaBuildAction.class);
+                        if (a != null) {
+                            warmNow(a);
+                            n++;
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Full names of the recently viewed jobs, the most recent first.
+     */
+    static final class RecentJobs {
+
+        private final int max;
+        private final List<String> names = new ArrayList<String>();
+
+        RecentJobs(int max) {
+            this.max = max;
+        }
+
+        /**
+         * @return
+         *      true if the list changed.
+         */
+        synchronized boolean add(String name) {
+            if (max == 0 || (!names.isEmpty() && names.get(0).equals(name))) {
+                return false;
+            }
+            names.remove(name);
+            names.add(0, name);
+            while (names.size() > max) {
+                names.remove(names.size() - 1);
+            }
+            return true;
+        }
+
+        synchronized List<String> list() {
+            return new ArrayList<String>(names);
+        }
+
+        void save(XmlFile file) throws IOException {
+            file.write(list());
+        }
+
+        /**
+         * Adds the names saved in the file after the ones already in the list.
+         */
+        synchronized void load(XmlFile file) throws IOException {
+            if (!file.exists()) {
+                return;
+            }
+            Object saved = file.read();
+            if (!(saved instanceof List)) {
+                return;
+            }
+            for (Object name : (List<?>) saved) {
+                if (names.size() >= max) {
+                    break;
+                }
+                if (name instanceof String && ((String) name).length() > 0 && !names.contains(name)) {
+                    names.add((String) name);
+                }
+            }
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ReportWarmer.class.getName());
+}
@@ -0,0 +1,577 @@
+package hudson.plugins.cocoemma;
+
+import hudson.Extension;
+import hudson.model.Job;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * File in the folder of a job with the coverage of each of its builds, so that the
+ * trend graphs do not load the reports of the previous builds.
+ *
+ * <p>
+ * Layout, big endian:
+ * <pre>
+ * header   int magic, int version
+ * records  int length of the rest of the record, byte type, int build number, and for
+ *          {@link #METRICS} records: int node count, int[node count] offsets of the
+ *          nodes from the type byte, then for each node in the order of the UTF-8
+ *          bytes of its path: short path length, path, int metrics mask,
+ *          byte 1 if fractions follow, the numerator/denominator counts as longs,
+ *          the fractions as doubles
+ * </pre>
+ * The nodes recorded are the root, the packages and the source files, that is
+ * the objects with a page of their own. A record of a build overrides the earlier
+ * records of the same build. A truncated last record is dropped on the next append.
+ *
+ * <p>
+ * A trend only reads the record headers, and a binary search of the path in the
+ * records of the builds it shows. Once most of the file is overridden or deleted
+ * records, it is rewritten with the live records only.
+ */
+final class TrendIndex {
+
+    /**
+     * Name of the index in the folder of the job.
+     */
+    static final String FILE_NAME = "cocoemma-trend.idx";
+
+    static final int MAGIC = 0x43454d54; // "CEMT"
+    static final int VERSION = 2;
+
+    static final byte METRICS = 0, FAILED = 1, DELETED = 2;
+
+    private static final int HEADER_SIZE = 8;
+
+    /**
+     * The file is not compacted below this many bytes of dead records.
+     */
+    private static final long MIN_COMPACTION = 64 * 1024;
+
+    private TrendIndex() {
+    }
+
+    static File getFile(Job<?,?> job) {
+        return new File(job.getRootDir(), FILE_NAME);
+    }
+
+    /**
+     * Path of the object in the index, or null if it is not recorded.
+     */
+    static String pathOf(CoverageObject<?> o) {
+        if (o instanceof CocoEmmaBuildAction || o instanceof CoverageReport) {
+            return "";
+        } else if (o instanceof PackageReport) {
+            return ((PackageReport) o).getName();
+        } else if (o instanceof SourceFileReport) {
+            SourceFileReport f = (SourceFileReport) o;
+            return f.getParent().getName() + '/' + f.getName();
+        }
+        return null;
+    }
+
+    /**
+     * Finds the object at the given path of a report, the reverse of {@link #pathOf}.
+     *
+     * @return null if the report does not have it.
+     */
+    static AbstractReport<?,?> find(CoverageReport report, String path) {
+        if (path.length() == 0) {
+            return report;
+        }
+        int slash = path.indexOf('/');
+        PackageReport p = report.getChild(slash < 0 ? path : path.substring(0, slash));
+        if (p == null || slash < 0) {
+            return p;
+        }
+        return p.getChild(path.substring(slash + 1));
+    }
+
+    /**
+     * Records the coverage of a build.
+     */
+    static void append(Job<?,?> job, int build, CoverageReport report) throws IOException {
+        append(getFile(job), build, report);
+    }
+
+    static void append(File file, int build, CoverageReport report) throws IOException {
+        TreeMap<byte[], AbstractReport<?,?>> nodes = new TreeMap<byte[], AbstractReport<?,?>>(UTF8_ORDER);
+        nodes.put(utf8(pathOf(report)), report);
+        for (PackageReport p : report.getChildren().values()) {
+            nodes.put(utf8(pathOf(p)), p);
+            for (SourceFileReport f : p.getChildren().values()) {
+                nodes.put(utf8(pathOf(f)), f);
+            }
+        }
+
+        ByteArrayOutputStream entries = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(entries);
+        int[] offsets = new int[nodes.size()];
+        int base = 1 + 4 + 4 + 4 * nodes.size();
+        int i = 0;
+        for (Map.Entry<byte[], AbstractReport<?,?>> e : nodes.entrySet()) {
+            AbstractReport<?,?> n = e.getValue();
+            offsets[i++] = base + out.size();
+            out.writeShort(e.getKey().length);
+            out.write(e.getKey());
+            out.writeInt(n.getMetricMask());
+            double[] fractions = n.getFractions();
+            out.writeBoolean(fractions != null);
+            for (long v : n.getCounts()) {
+                out.writeLong(v);
+            }
+            if (fractions != null) {
+                for (double v : fractions) {
+                    out.writeDouble(v);
+                }
+            }
+        }
+        out.flush();
+
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(base + entries.size());
+        out = new DataOutputStream(buf);
+        out.writeByte(METRICS);
+        out.writeInt(build);
+        out.writeInt(offsets.length);
+        for (int offset : offsets) {
+            out.writeInt(offset);
+        }
+        entries.writeTo(out);
+        out.flush();
+        append(file, buf.toByteArray());
+    }
+
+    /**
+     * Records that a build failed or was deleted, so that it is left out of the trend.
+     */
+    static void mark(Job<?,?> job, int build, byte type) throws IOException {
+        mark(getFile(job), build, type);
+    }
+
+    static void mark(File file, int build, byte type) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buf);
+        out.writeByte(type);
+        out.writeInt(build);
+        out.flush();
+        append(file, buf.toByteArray());
+        if (type == DELETED) {
+            compact(file);
+        }
+    }
+
+    private static synchronized void append(File file, byte[] record) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() < HEADER_SIZE || raf.readInt() != MAGIC || raf.readInt() != VERSION) {
+                if (raf.length() >= HEADER_SIZE) {
+                    // the trend of the older builds is read from their reports instead
+                    LOGGER.info("Replacing the coverage trend index of another version " + file);
+                }
+                raf.setLength(0);
+                raf.seek(0);
+                raf.writeInt(MAGIC);
+                raf.writeInt(VERSION);
+            }
+            long end = validLength(raf);
+            if (end < raf.length()) {
+                LOGGER.warning("Dropping a truncated record at the end of " + file);
+                raf.setLength(end);
+            }
+            raf.seek(end);
+            raf.writeInt(record.length);
+            raf.write(record);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Length of the complete records, only reading their lengths.
+     */
+    private static long validLength(RandomAccessFile raf) throws IOException {
+        long length = raf.length();
+        long pos = HEADER_SIZE;
+        while (pos + 4 <= length) {
+            raf.seek(pos);
+            int n = raf.readInt();
+            if (n < 5 || pos + 4 + n > length) {
+                break;
+            }
+            pos += 4 + n;
+        }
+        return pos;
+    }
+
+    /**
+     * Where the live records of the builds are, from the record headers.
+     */
+    private static final class Directory {
+        /**
+         * Position of the last {@link #METRICS} record of each build that is not deleted.
+         */
+        final TreeMap<Integer, Long> metrics = new TreeMap<Integer, Long>();
+        /**
+         * The builds that failed since their last {@link #METRICS} record.
+         */
+        final Set<Integer> failed = new HashSet<Integer>();
+        long length = HEADER_SIZE;
+        long live;
+    }
+
+    /**
+     * Reads the record headers.
+     *
+     * @return null if the file is not an index of this version.
+     */
+    private static Directory scan(FileChannel ch) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + 1);
+        if (readAt(ch, header, 0) < HEADER_SIZE || header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+            return null;
+        }
+        Directory d = new Directory();
+        Map<Integer, Integer> sizes = new HashMap<Integer, Integer>();
+        long size = ch.size();
+        long pos = HEADER_SIZE;
+        while (pos + 9 <= size) {
+            header.clear();
+            if (readAt(ch, header, pos) < 9) {
+                break;
+            }
+            int length = header.getInt(0);
+            if (length < 5 || pos + 4 + length > size) {
+                break;
+            }
+            byte type = header.get(4);
+            int number = header.getInt(5);
+            if (type == METRICS) {
+                Integer old = sizes.put(number, 4 + length);
+                d.live += 4 + length - (old != null ? old : 0);
+                d.metrics.put(number, pos);
+                d.failed.remove(number);
+            } else if (type == FAILED) {
+                d.failed.add(number);
+            } else {
+                Integer old = sizes.remove(number);
+                d.live -= old != null ? old : 0;
+                d.metrics.remove(number);
+                d.failed.remove(number);
+            }
+            pos += 4 + length;
+        }
+        d.length = pos;
+        return d;
+    }
+
+    private static int readAt(FileChannel ch, ByteBuffer buf, long pos) throws IOException {
+        int total = 0;
+        while (buf.hasRemaining()) {
+            int n = ch.read(buf, pos + total);
+            if (n < 0) {
+                break;
+            }
+            total += n;
+        }
+        return total;
+    }
+
+    /**
+     * Rewrites the file with the live records only, once the dead ones take most of it.
+     */
+    static synchronized void compact(File file) throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            Directory d = scan(ch);
+            if (d == null) {
+                return;
+            }
+            long dead = d.length - HEADER_SIZE - d.live;
+            if (dead < MIN_COMPACTION || dead < d.live) {
+                return;
+            }
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 64 * 1024));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                ByteBuffer length = ByteBuffer.allocate(4);
+                for (Map.Entry<Integer, Long> e : d.metrics.entrySet()) {
+                    length.clear();
+                    readAt(ch, length, e.getValue());
+                    ByteBuffer record = ByteBuffer.allocate(4 + length.getInt(0));
+                    readAt(ch, record, e.getValue());
+                    out.write(record.array());
+                    if (d.failed.contains(e.getKey())) {
+                        out.writeInt(5);
+                        out.writeByte(FAILED);
+                        out.writeInt(e.getKey());
+                    }
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            ch.close();
+        }
+        if (tmp.exists()) {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * One build of a trend.
+     */
+    static final class Point {
+        final int build;
+        /**
+         * Indexed by {@link CoverageMetric#ordinal()}, null for the missing metrics.
+         */
+        final Ratio[] ratios;
+
+        Point(int build, Ratio[] ratios) {
+            this.build = build;
+            this.ratios = ratios;
+        }
+    }
+
+    /**
+     * The trend of an object, as far as the index goes.
+     */
+    static final class Trend {
+        /**
+         * The newest build first.
+         */
+        final List<Point> points = new ArrayList<Point>();
+        /**
+         * The oldest build in the index. The trend before it is in the reports only.
+         */
+        final int oldest;
+
+        Trend(int oldest) {
+            this.oldest = oldest;
+        }
+    }
+
+    /**
+     * Reads the trend of the object at the given path, from the given build back to
+     * the end of the window. Like {@link AbstractReport#getPreviousResult()}, the
+     * previous builds that failed or do not have the object are skipped.
+     *
+     * @return
+     *      null if the build is not in the index.
+     */
+    static Trend read(Run<?,?> build, String path, TrendWindow window) throws IOException {
+        return read(getFile(build.getParent()), build.getNumber(), path, window);
+    }
+
+    static Trend read(File file, int build, String path) throws IOException {
+        return read(file, build, path, TrendWindow.DEFAULT);
+    }
+
+    static Trend read(File file, int build, String path, TrendWindow window) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        byte[] key = utf8(path);
+        FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            Directory d = scan(ch);
+            if (d == null || !d.metrics.containsKey(build)) {
+                return null;
+            }
+            Trend trend = new Trend(d.metrics.firstKey());
+            for (Map.Entry<Integer, Long> e : d.metrics.headMap(build, true).descendingMap().entrySet()) {
+                int number = e.getKey();
+                if (number != build && d.failed.contains(number)) {
+                    continue;
+                }
+                if (!window.contains(number, trend.points.size())) {
+                    break;
+                }
+                Ratio[] ratios = find(ch, e.getValue(), key);
+                if (ratios != null) {
+                    trend.points.add(new Point(number, ratios));
+                }
+            }
+            return trend;
+        } finally {
+            ch.close();
+        }
+    }
+
+    /**
+     * Binary search of a path in the {@link #METRICS} record at the given position.
+     *
+     * @return null if the build does not have the path.
+     */
+    private static Ratio[] find(FileChannel ch, long pos, byte[] key) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(4 + 1 + 4 + 4);
+        readAt(ch, header, pos);
+        long record = pos + 4;
+        int count = header.getInt(9);
+        ByteBuffer b = ByteBuffer.allocate(4);
+        int low = 0, high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            b.clear();
+            readAt(ch, b, record + 9 + 4L * mid);
+            long entry = record + b.getInt(0);
+            ByteBuffer len = ByteBuffer.allocate(2);
+            readAt(ch, len, entry);
+            ByteBuffer name = ByteBuffer.allocate(len.getShort(0) & 0xffff);
+            readAt(ch, name, entry + 2);
+            int c = UTF8_ORDER.compare(name.array(), key);
+            if (c < 0) {
+                low = mid + 1;
+            } else if (c > 0) {
+                high = mid - 1;
+            } else {
+                return readMetrics(ch, entry + 2 + name.capacity());
+            }
+        }
+        return null;
+    }
+
+    private static Ratio[] readMetrics(FileChannel ch, long pos) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(5);
+        readAt(ch, header, pos);
+        int mask = header.getInt(0);
+        boolean hasFractions = header.get(4) != 0;
+        int size = 2 * Integer.bitCount(mask);
+        ByteBuffer values = ByteBuffer.allocate(8 * size * (hasFractions ? 2 : 1));
+        if (readAt(ch, values, pos + 5) < values.capacity()) {
+            throw new EOFException("Truncated coverage trend index");
+        }
+        long[] counts = new long[size];
+        for (int j = 0; j < size; j++) {
+            counts[j] = values.getLong(8 * j);
+        }
+        double[] fractions = new double[size];
+        if (hasFractions) {
+            for (int j = 0; j < size; j++) {
+                fractions[j] = values.getDouble(8 * (size + j));
+            }
+        }
+        Ratio[] ratios = new Ratio[CoverageMetric.count()];
+        int j = 0;
+        for (CoverageMetric m : CoverageMetric.all()) {
+            if ((mask & (1 << m.ordinal())) != 0) {
+                ratios[m.ordinal()] = new Ratio(counts[j], counts[j + 1], fractions[j], fractions[j + 1]);
+                j += 2;
+            }
+        }
+        return ratios;
+    }
+
+    private static byte[] utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Unsigned lexicographic order of the UTF-8 bytes of the paths.
+     */
+    private static final Comparator<byte[]> UTF8_ORDER = new Comparator<byte[]>() {
+        public int compare(byte[] a, byte[] b) {
+            int n = Math.min(a.length, b.length);
+            for (int i = 0; i < n; i++) {
+                int c = (a[i] & 0xff) - (b[i] & 0xff);
+                if (c != 0) {
+                    return c;
+                }
+            }
+            return a.length - b.length;
+        }
+    };
+
+    /**
+     * Label of a build in a trend graph. The build number, as the index does not
+     * load the builds to get their display names.
+     */
+    static final class BuildLabel implements Comparable<BuildLabel> {
+        final int number;
+
+        BuildLabel(int number) {
+            this.number = number;
+        }
+
+        public int compareTo(BuildLabel that) {
+            return number - that.number;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof BuildLabel && ((BuildLabel) o).number == number;
+        }
+
+        @Override
+        public int hashCode() {
+            return number;
+        }
+
+        @Override
+        public String toString() {
+            return "#" + number;
+        }
+    }
+
+    /**
+     * Records the builds that failed and the deleted ones.
+     */
+    @Extension
+    public static final class Listener extends RunListener<Run<?,?>> {
+        @Override
+        public void onCompleted(Run<?,?> run, TaskListener listener) {
+            if (run.getResult() == Result.FAILURE && run.getAction(CocoEmmaBuildAction.class) != null) {
+                markQuietly(run, FAILED);
+            }
+        }
+
+        @Override
+        public void onDeleted(Run<?,?> run) {
+            if (run.getAction(CocoEmmaBuildAction.class) != null) {
+                markQuietly(run, DELETED);
+            }
+        }
+
+        private static void markQuietly(Run<?,?> run, byte type) {
+            GraphCache.get().invalidate(run.getParent());
+            try {
+                mark(run.getParent(), run.getNumber(), type);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to update the coverage trend of " + run, e);
+            }
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(TrendIndex.class.getName());
+}
@@ -0,0 +1,193 @@
+package hudson.plugins.cocoemma;
+
+import hudson.util.DataSetBuilder;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * The values of a trend chart, one series per metric and one column per build or day.
+ *
+ * <p>
+ * It is either drawn on the controller through a {@link DataSetBuilder}, or sent as
+ * JSON to be drawn by the browser:
+ * <pre>
+ * {"labels":["#1","#2"],"series":[{"name":"class","values":[50.0,null]}]}
+ * </pre>
+ * The columns are in ascending order, and a missing value is {@code null}.
+ */
+public final class TrendTable<C extends Comparable<? super C>> {
+
+    private final SortedSet<C> columns = new TreeSet<C>();
+
+    private final Map<String, Map<C, Number>> series = new LinkedHashMap<String, Map<C, Number>>();
+
+    public void add(Number value, String name, C column) {
+        columns.add(column);
+        Map<C, Number> values = series.get(name);
+        if (values == null) {
+            values = new TreeMap<C, Number>();
+            series.put(name, values);
+        }
+        values.put(column, value);
+    }
+
+    public boolean isEmpty() {
+        return columns.isEmpty();
+    }
+
+    /**
+     * Reduces the table to at most the given number of columns, keeping the shape of
+     * each series: the columns are split in buckets of consecutive columns, and each
+     * bucket keeps the columns where a series has its minimum or its maximum, with the
+     * values of all the series there. When the series peak at different columns, there
+     * are fewer buckets, down to one; so a table with more series than half the given
+     * number may keep more columns.
+     *
+     * @return
+     *      this table if it is small enough.
+     */
+    public TrendTable<C> downsample(int maxColumns) {
+        int n = columns.size();
+        if (n <= maxColumns || maxColumns < 2) {
+            return this;
+        }
+        List<C> cols = new ArrayList<C>(columns);
+        int buckets = maxColumns / 2;
+        SortedSet<C> kept = select(cols, buckets);
+        while (kept.size() > maxColumns && buckets > 1) {
+            buckets = Math.max(1, Math.min(buckets - 1, (int) ((long) buckets * maxColumns / kept.size())));
+            kept = select(cols, buckets);
+        }
+
+        TrendTable<C> out = new TrendTable<C>();
+        for (Map.Entry<String, Map<C, Number>> s : series.entrySet()) {
+            for (C c : kept) {
+                Number v = s.getValue().get(c);
+                if (v != null) {
+                    out.add(v, s.getKey(), c);
+                }
+            }
+        }
+        return out;
+    }
+
+    /**
+     * The columns of the minimum and the maximum of each series in each bucket.
+     */
+    private SortedSet<C> select(List<C> cols, int buckets) {
+        int n = cols.size();
+        SortedSet<C> kept = new TreeSet<C>();
+        for (int b = 0; b < buckets; b++) {
+            int from = (int) ((long) b * n / buckets);
+            int to = (int) ((long) (b + 1) * n / buckets);
+            for (Map<C, Number> values : series.values()) {
+                double min = Double.NaN, max = Double.NaN;
+                int minAt = -1, maxAt = -1;
+                for (int i = from; i < to; i++) {
+                    Number v = values.get(cols.get(i));
+                    if (v == null || Double.isNaN(v.doubleValue())) {
+                        continue;
+                    }
+                    double d = v.doubleValue();
+                    if (minAt < 0 || d < min) {
+                        min = d;
+                        minAt = i;
+                    }
+                    if (maxAt < 0 || d > max) {
+                        max = d;
+                        maxAt = i;
+                    }
+                }
+                if (minAt >= 0) {
+                    kept.add(cols.get(minAt));
+                    kept.add(cols.get(maxAt));
+                }
+            }
+        }
+        return kept;
+    }
+
+    public DataSetBuilder<String, C> toDataSetBuilder() {
+        DataSetBuilder<String, C> dsb = new DataSetBuilder<String, C>();
+        for (Map.Entry<String, Map<C, Number>> s : series.entrySet()) {
+            for (Map.Entry<C, Number> v : s.getValue().entrySet()) {
+                dsb.add(v.getValue(), s.getKey(), v.getKey());
+            }
+        }
+        return dsb;
+    }
+
+    public String toJson() {
+        StringBuilder buf = new StringBuilder();
+        buf.append("{\"labels\":[");
+        String sep = "";
+        for (C c : columns) {
+            buf.append(sep);
+            appendString(buf, c.toString());
+            sep = ",";
+        }
+        buf.append("],\"series\":[");
+        sep = "";
+        for (Map.Entry<String, Map<C, Number>> s : series.entrySet()) {
+            buf.append(sep).append("{\"name\":");
+            appendString(buf, s.getKey());
+            buf.append(",\"values\":[");
+            String vsep = "";
+            for (C c : columns) {
+                Number v = s.getValue().get(c);
+                buf.append(vsep);
+                if (v == null || Double.isNaN(v.doubleValue()) || Double.isInfinite(v.doubleValue())) {
+                    buf.append("null");
+                } else {
+                    buf.append(v.floatValue());
+                }
+                vsep = ",";
+            }
+            buf.append("]}");
+            sep = ",";
+        }
+        return buf.append("]}").toString();
+    }
+
+    private static void appendString(StringBuilder buf, String s) {
+        buf.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char ch = s.charAt(i);
+            switch (ch) {
+            case '"':  buf.append("\\\""); break;
+            case '\\': buf.append("\\\\"); break;
+            case '<':  buf.append("\\u003c"); break;
+            default:
+                if (ch < 0x20) {
+                    buf.append(String.format("\\u%04x", (int) ch));
+                } else {
+                    buf.append(ch);
+                }
+            }
+        }
+        buf.append('"');
+    }
+
+    /**
+     * Sends the table as JSON, with an {@code ETag} so that an unchanged table gets a 304.
+     */
+    public void sendJson(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        toContent().send(req, rsp);
+    }
+
+    GraphCache.Content toContent() {
+        return new GraphCache.Content(toJson().getBytes(StandardCharsets.UTF_8), System.currentTimeMillis(),
+                "application/json;charset=UTF-8");
+    }
+}
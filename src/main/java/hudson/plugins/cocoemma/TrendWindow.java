@@ -0,0 +1,65 @@
+package hudson.plugins.cocoemma;
+
+import hudson.Util;
+
+import org.kohsuke.stapler.StaplerRequest;
+
+/**
+ * The builds shown in a trend: at most {@code builds} of them, none older than
+ * build number {@code since}. Set with the {@code ?builds=} and {@code ?since=}
+ * parameters of the graph and JSON URLs.
+ */
+final class TrendWindow {
+
+    /**
+     * Maximum number of builds in a trend, whatever is asked for.
+     */
+    static final int MAX_BUILDS = Math.max(1, Integer.getInteger(TrendWindow.class.getName() + ".MAX_BUILDS", 500));
+
+    /**
+     * Maximum number of points drawn per series. Longer trends are downsampled,
+     * see {@link TrendTable#downsample(int)}.
+     */
+    static final int MAX_POINTS = Math.max(2, Integer.getInteger(TrendWindow.class.getName() + ".MAX_POINTS", 120));
+
+    static final TrendWindow DEFAULT = new TrendWindow(MAX_BUILDS, 0);
+
+    final int builds;
+    final int since;
+
+    TrendWindow(int builds, int since) {
+        this.builds = Math.max(1, Math.min(builds, MAX_BUILDS));
+        this.since = Math.max(0, since);
+    }
+
+    static TrendWindow of(StaplerRequest req) {
+        return new TrendWindow(parse(req.getParameter("builds"), MAX_BUILDS), parse(req.getParameter("since"), 0));
+    }
+
+    private static int parse(String value, int defaultValue) {
+        value = Util.fixEmptyAndTrim(value);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Checks whether the build is in the window, given how many newer builds are.
+     * As the builds only get older, the walk stops at the first one out of it.
+     */
+    boolean contains(int number, int newer) {
+        return newer < builds && number >= since;
+    }
+
+    /**
+     * Part of the {@link GraphCache} keys.
+     */
+    String key() {
+        return builds + "," + since;
+    }
+}
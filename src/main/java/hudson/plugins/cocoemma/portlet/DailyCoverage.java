@@ -0,0 +1,347 @@
+package hudson.plugins.cocoemma.portlet;
+
+import hudson.Extension;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.plugins.cocoemma.CocoEmmaBuildAction;
+import hudson.plugins.cocoemma.CoverageMetric;
+import hudson.plugins.cocoemma.portlet.utils.Utils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Coverage of the last build of each day of a job, so that the trend portlet does
+ * not walk the builds of the jobs of the dashboard.
+ *
+ * <p>
+ * It is built from the build history when the trend of the job is shown, only back
+ * to the first day shown, then saved in the folder of the job and kept up to date by
+ * {@link Listener}. Showing more days walks the older builds then.
+ * Layout, big endian:
+ * <pre>
+ * header   int magic, int version, int metric count, int last build number,
+ *          int first build number, long first complete day, int day count
+ * days     long epoch day, int build number, the percentages as floats
+ * </pre>
+ */
+final class DailyCoverage {
+
+  /**
+   * Name of the file in the folder of the job.
+   */
+  static final String FILE_NAME = "cocoemma-daily.dat";
+
+  static final int MAGIC = 0x43454d44; // "CEMD"
+  static final int VERSION = 2;
+
+  private static final ConcurrentMap<String, DailyCoverage> rollups = new ConcurrentHashMap<String, DailyCoverage>();
+
+  /**
+   * The last build of each day, by epoch day.
+   */
+  private final TreeMap<Long, Day> days = new TreeMap<Long, Day>();
+
+  /**
+   * Newest build recorded. Older builds are recorded by {@link Listener} only.
+   */
+  private int lastBuild;
+
+  /**
+   * Oldest build walked, 0 if none.
+   */
+  private int firstBuild;
+
+  /**
+   * The days after this epoch day are complete, the builds before were not walked.
+   */
+  private long completeAfter = Long.MAX_VALUE;
+
+  /**
+   * Held while walking the history, so that concurrent renders wait for one walk.
+   */
+  private final Object walk = new Object();
+
+  /**
+   * Coverage of the last build of a day.
+   */
+  static final class Day {
+    final int build;
+    final float[] coverages;
+
+    Day(int build, float[] coverages) {
+      this.build = build;
+      this.coverages = coverages;
+    }
+  }
+
+  /**
+   * Gets the rollup of the job, building it from its history if needed.
+   *
+   * @param from
+   *      the epoch day after which the rollup must be complete.
+   */
+  static DailyCoverage of(Job<?, ?> job, long from) {
+    DailyCoverage d = loaded(job);
+    if (d == null) {
+      d = new DailyCoverage();
+      DailyCoverage other = rollups.putIfAbsent(job.getFullName(), d);
+      if (other != null) {
+        d = other;
+      }
+    }
+    if (d.catchUp(job, from)) {
+      d.saveQuietly(job);
+    }
+    return d;
+  }
+
+  /**
+   * Gets the rollup of the job if it was already built, without building it.
+   */
+  private static DailyCoverage loaded(Job<?, ?> job) {
+    String key = job.getFullName();
+    DailyCoverage d = rollups.get(key);
+    if (d != null) {
+      return d;
+    }
+    File file = getFile(job);
+    if (!file.exists()) {
+      return null;
+    }
+    d = new DailyCoverage();
+    try {
+      d.load(file);
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Failed to read " + file + ", it will be built again", e);
+      d = new DailyCoverage();
+    }
+    DailyCoverage other = rollups.putIfAbsent(key, d);
+    return other != null ? other : d;
+  }
+
+  static File getFile(Job<?, ?> job) {
+    return new File(job.getRootDir(), FILE_NAME);
+  }
+
+  /**
+   * Records the builds newer than the last one recorded, and the older builds not
+   * walked yet up to the given day. A new rollup only walks back to that day.
+   *
+   * @return whether anything was walked
+   */
+  private boolean catchUp(Job<?, ?> job, long from) {
+    synchronized (walk) {
+      int last, first;
+      long since;
+      synchronized (this) {
+        last = lastBuild;
+        first = firstBuild;
+        since = completeAfter;
+      }
+      boolean walked = false;
+
+      Run<?, ?> run = job.getLastCompletedBuild();
+      if (run != null && (first == 0 || run.getNumber() > last)) {
+        // a new rollup may already have builds recorded by the listener
+        boolean fresh = first == 0;
+        for (; run != null && (fresh || run.getNumber() > last); run = run.getPreviousBuild()) {
+          if (fresh && Utils.getDate(run).toEpochDay() <= from) {
+            break;
+          }
+          if (!run.isBuilding()) {
+            record(run);
+          }
+          if (fresh) {
+            first = run.getNumber();
+          }
+        }
+        if (fresh) {
+          since = run == null ? Long.MIN_VALUE : from;
+        }
+        // a new rollup with no build after the first day shown is walked again next time
+        walked = !fresh || first > 0;
+      }
+
+      if (first > 0 && since > from) {
+        Run<?, ?> older = job.getNearestOldBuild(first - 1);
+        for (; older != null && Utils.getDate(older).toEpochDay() > from; older = older.getPreviousBuild()) {
+          if (!older.isBuilding()) {
+            record(older);
+          }
+          first = older.getNumber();
+        }
+        since = older == null ? Long.MIN_VALUE : from;
+        walked = true;
+      }
+
+      if (walked) {
+        synchronized (this) {
+          firstBuild = first;
+          completeAfter = since;
+        }
+      }
+      return walked;
+    }
+  }
+
+  void record(Run<?, ?> run) {
+    record(Utils.getDate(run).toEpochDay(), run.getNumber(),
+        EmmaLoadData.getCoverages(run.getAction(CocoEmmaBuildAction.class), false));
+  }
+
+  /**
+   * Records the coverage of a build, unless a newer build of the same day is recorded.
+   */
+  synchronized void record(long day, int build, float[] coverages) {
+    Day d = days.get(day);
+    if (d == null || d.build <= build) {
+      days.put(day, new Day(build, coverages));
+    }
+    lastBuild = Math.max(lastBuild, build);
+  }
+
+  /**
+   * Forgets a deleted build. The previous build takes its place if it is of the same day.
+   */
+  void remove(Run<?, ?> run) {
+    long day = Utils.getDate(run).toEpochDay();
+    Run<?, ?> previous = run.getPreviousBuild();
+    if (previous != null && (previous.isBuilding() || Utils.getDate(previous).toEpochDay() != day)) {
+      previous = null;
+    }
+    if (remove(day, run.getNumber()) && previous != null) {
+      record(previous);
+    }
+  }
+
+  /**
+   * Forgets the build if it is the one recorded for the day.
+   *
+   * @return whether it was
+   */
+  synchronized boolean remove(long day, int build) {
+    Day d = days.get(day);
+    if (d == null || d.build != build) {
+      return false;
+    }
+    days.remove(day);
+    return true;
+  }
+
+  /**
+   * Gets the days after {@code from} up to {@code to}, inclusive.
+   */
+  synchronized SortedMap<Long, Day> between(long from, long to) {
+    return new TreeMap<Long, Day>(days.subMap(from, false, to, true));
+  }
+
+  synchronized void save(File file) throws IOException {
+    ByteArrayOutputStream buf = new ByteArrayOutputStream(32 + days.size() * (12 + 4 * CoverageMetric.count()));
+    DataOutputStream out = new DataOutputStream(buf);
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeInt(CoverageMetric.count());
+    out.writeInt(lastBuild);
+    out.writeInt(firstBuild);
+    out.writeLong(completeAfter);
+    out.writeInt(days.size());
+    for (Map.Entry<Long, Day> e : days.entrySet()) {
+      out.writeLong(e.getKey());
+      out.writeInt(e.getValue().build);
+      for (float c : e.getValue().coverages) {
+        out.writeFloat(c);
+      }
+    }
+    out.flush();
+    File tmp = new File(file.getPath() + ".tmp");
+    Files.write(tmp.toPath(), buf.toByteArray());
+    Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Reads a saved rollup. A rollup saved with other metrics is ignored, and built again.
+   */
+  synchronized void load(File file) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        throw new IOException("Not a coverage rollup: " + file);
+      }
+      int metrics = in.readInt();
+      if (metrics != CoverageMetric.count()) {
+        return;
+      }
+      int last = in.readInt();
+      int first = in.readInt();
+      long since = in.readLong();
+      int n = in.readInt();
+      TreeMap<Long, Day> read = new TreeMap<Long, Day>();
+      for (int i = 0; i < n; i++) {
+        long day = in.readLong();
+        int build = in.readInt();
+        float[] coverages = new float[metrics];
+        for (int m = 0; m < metrics; m++) {
+          coverages[m] = in.readFloat();
+        }
+        read.put(day, new Day(build, coverages));
+      }
+      days.putAll(read);
+      lastBuild = last;
+      firstBuild = first;
+      completeAfter = since;
+    } finally {
+      in.close();
+    }
+  }
+
+  private void saveQuietly(Job<?, ?> job) {
+    try {
+      save(getFile(job));
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Failed to save the daily coverage of " + job, e);
+    }
+  }
+
+  /**
+   * Keeps the rollups already built up to date.
+   */
+  @Extension
+  public static final class Listener extends RunListener<Run<?, ?>> {
+    @Override
+    public void onCompleted(Run<?, ?> run, TaskListener listener) {
+      DailyCoverage d = loaded(run.getParent());
+      if (d != null) {
+        d.record(run);
+        d.saveQuietly(run.getParent());
+      }
+    }
+
+    @Override
+    public void onDeleted(Run<?, ?> run) {
+      DailyCoverage d = loaded(run.getParent());
+      if (d != null) {
+        d.remove(run);
+        d.saveQuietly(run.getParent());
+      }
+    }
+  }
+
+  private static final Logger LOGGER = Logger.getLogger(DailyCoverage.class.getName());
+}
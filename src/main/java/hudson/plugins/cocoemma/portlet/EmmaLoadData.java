@@ -32,14 +32,20 @@ package hudson.plugins.cocoemma.portlet;
 import hudson.model.Job;
 import hudson.model.Run;
 import hudson.plugins.cocoemma.CocoEmmaBuildAction;
+import hudson.plugins.cocoemma.CoverageMetric;
+import hudson.plugins.cocoemma.Ratio;
 import hudson.plugins.cocoemma.portlet.bean.EmmaCoverageResultSummary;
 import hudson.plugins.cocoemma.portlet.utils.Utils;
 
 import java.math.BigDecimal;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
 import java.util.TimeZone;
 import java.util.TreeMap;
 
@@ -59,7 +65,8 @@ public final class EmmaLoadData {
 
   /**
    * Get Emma coverage results of all jobs and store into a sorted
-   * HashMap by date.
+   * HashMap by date. Each job counts once per day, with its last build of
+   * the day, read from its {@link DailyCoverage}.
    *
    * @param jobs
    *        jobs of Dashboard view
@@ -82,28 +89,39 @@ public final class EmmaLoadData {
     // Get the first date from last build date minus number of days
     LocalDate firstDate = lastDate.minusDays(daysNumber);
 
-    // For each job, get Emma coverage results according with
-    // date range (last build date minus number of days)
+    // A job listed twice is only counted once
+    Set<String> seen = new HashSet<String>();
+    List<Job> distinct = new ArrayList<Job>();
     for (Job job : jobs) {
+      if (seen.add(job.getFullName())) {
+        distinct.add(job);
+      }
+    }
 
-      Run run = job.getLastBuild();
-
-      if (null != run) {
-        LocalDate runDate = LocalDate.ofEpochDay(run.getTimestamp().toInstant().getEpochSecond());
-
-        while (runDate.isAfter(firstDate)) {
-
-          summarize(summaries, run, runDate, job);
-
-          run = run.getPreviousBuild();
-
-          if (null == run) {
-            break;
+    final long from = firstDate.toEpochDay();
+    final long to = lastDate.toEpochDay();
+    List<SortedMap<Long, DailyCoverage.Day>> rollups = JobCollector.collect(distinct,
+        new JobCollector.Task<SortedMap<Long, DailyCoverage.Day>>() {
+          public SortedMap<Long, DailyCoverage.Day> collect(Job job) {
+            return DailyCoverage.of(job, from).between(from, to);
           }
+        });
 
-          runDate = LocalDate.ofEpochDay(run.getTimestamp().toInstant().getEpochSecond());
-
+    for (int i = 0; i < distinct.size(); i++) {
+      Job job = distinct.get(i);
+      SortedMap<Long, DailyCoverage.Day> days = rollups.get(i);
+      if (days == null) {
+        continue;
+      }
+      for (Map.Entry<Long, DailyCoverage.Day> day : days.entrySet()) {
+        LocalDate date = LocalDate.ofEpochDay(day.getKey());
+        EmmaCoverageResultSummary summary = summaries.get(date);
+        if (summary == null) {
+          summary = new EmmaCoverageResultSummary();
+          summaries.put(date, summary);
         }
+        summary.addCoverageResult(newSummary(job, day.getValue().coverages));
+        summary.setJob(job);
       }
     }
 
@@ -115,215 +133,115 @@ public final class EmmaLoadData {
   }
 
   /**
-   * Summarize Emma converage results.
+   * Summarize the last coverage results of all jobs, which have coverage.
    *
-   * @param summaries
-   *          a Map of EmmaCoverageResultSummary objects indexed by
-   *          dates
-   * @param run
-   *          the build which will provide information about the
-   *          coverage result
-   * @param runDate
-   *          the date on which the build was performed
-   * @param job
-   *          job from the DashBoard Portlet view
+   * @param jobs
+   *          a final Collection of Job objects
+   * @return EmmaCoverageResultSummary the result summary
    */
-  private static void summarize(Map<LocalDate, EmmaCoverageResultSummary> summaries, Run run, LocalDate runDate, Job job) {
-
-    EmmaCoverageResultSummary emmaCoverageResult = getResult(run);
-
-    // Retrieve Emma information for informed date
-    EmmaCoverageResultSummary emmaCoverageResultSummary = summaries.get(runDate);
-
-    // Consider the last result of each
-    // job date (if there are many builds for the same date). If not
-    // exists, the Emma coverage data must be added. If exists
-    // Emma coverage data for the same date but it belongs to other
-    // job, sum the values.
-    if (emmaCoverageResultSummary == null) {
-      emmaCoverageResultSummary = new EmmaCoverageResultSummary();
-      emmaCoverageResultSummary.addCoverageResult(emmaCoverageResult);
-      emmaCoverageResultSummary.setJob(job);
-    } else {
-
-      // Check if exists Emma data for same date and job
-      List<EmmaCoverageResultSummary> listResults = emmaCoverageResultSummary.getEmmaCoverageResults();
-      boolean found = false;
+  public static EmmaCoverageResultSummary getResultSummary(final Collection<Job> jobs) {
+    EmmaCoverageResultSummary summary = new EmmaCoverageResultSummary();
 
-      for (EmmaCoverageResultSummary item : listResults) {
-        if ((null != item.getJob()) && (null != item.getJob().getName()) && (null != job)) {
-          if (item.getJob().getName().equals(job.getName())) {
-            found = true;
-            break;
-          }
-        }
+    // Only the jobs without a cached summary are read
+    List<EmmaCoverageResultSummary> results = new ArrayList<EmmaCoverageResultSummary>(jobs.size());
+    List<Job> missing = new ArrayList<Job>();
+    List<Integer> missingAt = new ArrayList<Integer>();
+    for (Job job : jobs) {
+      EmmaCoverageResultSummary cached = ResultSummaries.get(job);
+      if (cached == null) {
+        missing.add(job);
+        missingAt.add(results.size());
       }
+      results.add(cached);
+    }
 
-      if (!found) {
-        emmaCoverageResultSummary.addCoverageResult(emmaCoverageResult);
-        emmaCoverageResultSummary.setJob(job);
+    if (!missing.isEmpty()) {
+      List<EmmaCoverageResultSummary> read = JobCollector.collect(missing,
+          new JobCollector.Task<EmmaCoverageResultSummary>() {
+            public EmmaCoverageResultSummary collect(Job job) {
+              long generation = ResultSummaries.generation(job);
+              EmmaCoverageResultSummary result = getLastResult(job);
+              ResultSummaries.put(job, result, generation);
+              return result;
+            }
+          });
+      for (int i = 0; i < read.size(); i++) {
+        results.set(missingAt.get(i), read.get(i));
       }
     }
 
-    summaries.put(runDate, emmaCoverageResultSummary);
+    for (EmmaCoverageResultSummary result : results) {
+      if (result != null && !ResultSummaries.isNone(result)) {
+        summary.addCoverageResult(result);
+      }
+    }
+    return summary;
   }
 
   /**
-   * Get the Emma coverage result for a specific run.
+   * Gets the coverage of the last successful build of a job.
    *
-   * @param run
-   *          a job execution
-   * @return EmmaCoverageTestResult the coverage result
+   * @param job
+   *          the job
+   * @return EmmaCoverageResultSummary the coverage, 0 if the job has no successful
+   *         build, or null if that build has no coverage
    */
-  private static EmmaCoverageResultSummary getResult(Run run) {
-    CocoEmmaBuildAction cocoEmmaAction = run.getAction(CocoEmmaBuildAction.class);
+  private static EmmaCoverageResultSummary getLastResult(Job job) {
+    float[] coverages = new float[CoverageMetric.count()];
 
-    float blockCoverage = 0.0f;
-    float classCoverage = 0.0f;
-    float lineCoverage = 0.0f;
-    float methodCoverage = 0.0f;
-    float decisionCoverage = 0.0f;
-    float conditionCoverage = 0.0f;
-    float mcdcCoverage = 0.0f;
-    float mccCoverage = 0.0f;
+    Run run = job.getLastSuccessfulBuild();
 
-    if (cocoEmmaAction != null) {
-      if (null != cocoEmmaAction.getBlockCoverage()) {
-        blockCoverage = cocoEmmaAction.getBlockCoverage().getPercentageFloat(cocoEmmaAction.getTestNotMandatory());
-      }
-      if (null != cocoEmmaAction.getClassCoverage()) {
-        classCoverage = cocoEmmaAction.getClassCoverage().getPercentageFloat(cocoEmmaAction.getTestNotMandatory());
-      }
-      if (null != cocoEmmaAction.getLineCoverage()) {
-        lineCoverage = cocoEmmaAction.getLineCoverage().getPercentageFloat(cocoEmmaAction.getTestNotMandatory());
-      }
-      if (null != cocoEmmaAction.getMethodCoverage()) {
-        methodCoverage = cocoEmmaAction.getMethodCoverage().getPercentageFloat(cocoEmmaAction.getTestNotMandatory());
-      }
-      if (null != cocoEmmaAction.getDecisionCoverage()) {
-        decisionCoverage = cocoEmmaAction.getDecisionCoverage().getPercentageFloat(cocoEmmaAction.getTestNotMandatory());
-      }
-      if (null != cocoEmmaAction.getConditionCoverage()) {
-        conditionCoverage = cocoEmmaAction.getConditionCoverage().getPercentageFloat(cocoEmmaAction.getTestNotMandatory());
-      }
-      if (null != cocoEmmaAction.getMcDcCoverage()) {
-        mcdcCoverage = cocoEmmaAction.getMcDcCoverage().getPercentageFloat(cocoEmmaAction.getTestNotMandatory());
-      }
-      if (null != cocoEmmaAction.getMccCoverage()) {
-        mccCoverage = cocoEmmaAction.getMccCoverage().getPercentageFloat(cocoEmmaAction.getTestNotMandatory());
+    if (run != null) {
+
+      CocoEmmaBuildAction cocoEmmaAction = run.getAction(CocoEmmaBuildAction.class);
+
+      if (null == cocoEmmaAction) {
+        return null;
+      } else {
+        coverages = getCoverages(cocoEmmaAction, true);
       }
     }
-    return new EmmaCoverageResultSummary(
-            run.getParent(), 
-            blockCoverage,
-            lineCoverage, 
-            methodCoverage, 
-            classCoverage, 
-            decisionCoverage,
-            conditionCoverage,
-            mcdcCoverage,
-            mccCoverage
-            );
+    return newSummary(job, coverages);
   }
 
   /**
-   * Summarize the last coverage results of all jobs, which have coverage.
+   * Gets the percentage of each metric of a build, indexed by {@link CoverageMetric#ordinal()}.
+   * Missing metrics are 0.
    *
-   * @param jobs
-   *          a final Collection of Job objects
-   * @return EmmaCoverageResultSummary the result summary
+   * @param cocoEmmaAction
+   *          the coverage action of the build, may be null
+   * @param round
+   *          whether to round the percentages to one decimal
+   * @return float[] the percentages
    */
-  public static EmmaCoverageResultSummary getResultSummary(final Collection<Job> jobs) {
-    EmmaCoverageResultSummary summary = new EmmaCoverageResultSummary();
-
-    for (Job job : jobs) {
-
-      float blockCoverage = 0.0f;
-      float classCoverage = 0.0f;
-      float lineCoverage = 0.0f;
-      float methodCoverage = 0.0f;
-      float decisionCoverage = 0.0f;
-      float conditionCoverage = 0.0f;
-      float mcdcCoverage = 0.0f;
-      float mccCoverage = 0.0f;
-
-      Run run = job.getLastSuccessfulBuild();
-
-      if (run != null) {
-
-        CocoEmmaBuildAction cocoEmmaAction = job.getLastSuccessfulBuild().getAction(CocoEmmaBuildAction.class);
-
-        if (null == cocoEmmaAction) {
-            continue;
-        } else {
-          if (null != cocoEmmaAction.getBlockCoverage()) {
-            blockCoverage = cocoEmmaAction.getBlockCoverage().getPercentageFloat(cocoEmmaAction.getTestNotMandatory());
-            BigDecimal bigBlockCoverage = new BigDecimal(blockCoverage);
-            bigBlockCoverage = bigBlockCoverage.setScale(1, BigDecimal.ROUND_HALF_EVEN);
-            blockCoverage = bigBlockCoverage.floatValue();
-          }
-
-          if (null != cocoEmmaAction.getClassCoverage()) {
-            classCoverage = cocoEmmaAction.getClassCoverage().getPercentageFloat(cocoEmmaAction.getTestNotMandatory());
-            BigDecimal bigClassCoverage = new BigDecimal(classCoverage);
-            bigClassCoverage = bigClassCoverage.setScale(1, BigDecimal.ROUND_HALF_EVEN);
-            classCoverage = bigClassCoverage.floatValue();
-          }
-          if (null != cocoEmmaAction.getLineCoverage()) {
-            lineCoverage = cocoEmmaAction.getLineCoverage().getPercentageFloat(cocoEmmaAction.getTestNotMandatory());
-            BigDecimal bigLineCoverage = new BigDecimal(lineCoverage);
-            bigLineCoverage = bigLineCoverage.setScale(1, BigDecimal.ROUND_HALF_EVEN);
-            lineCoverage = bigLineCoverage.floatValue();
-          }
-
-          if (null != cocoEmmaAction.getMethodCoverage()) {
-            methodCoverage = cocoEmmaAction.getMethodCoverage().getPercentageFloat(cocoEmmaAction.getTestNotMandatory());
-            BigDecimal bigMethodCoverage = new BigDecimal(methodCoverage);
-            bigMethodCoverage = bigMethodCoverage.setScale(1, BigDecimal.ROUND_HALF_EVEN);
-            methodCoverage = bigMethodCoverage.floatValue();
-          }
-          
-          if (null != cocoEmmaAction.getDecisionCoverage()) {
-            decisionCoverage = cocoEmmaAction.getDecisionCoverage().getPercentageFloat(cocoEmmaAction.getTestNotMandatory());
-            BigDecimal bigCoverage = new BigDecimal(decisionCoverage);
-            bigCoverage = bigCoverage.setScale(1, BigDecimal.ROUND_HALF_EVEN);
-            decisionCoverage = bigCoverage.floatValue();
-          }
-          
-          if (null != cocoEmmaAction.getConditionCoverage()) {
-            conditionCoverage = cocoEmmaAction.getConditionCoverage().getPercentageFloat(cocoEmmaAction.getTestNotMandatory());
-            BigDecimal bigCoverage = new BigDecimal(conditionCoverage);
-            bigCoverage = bigCoverage.setScale(1, BigDecimal.ROUND_HALF_EVEN);
-            conditionCoverage = bigCoverage.floatValue();
-          }
-          if (null != cocoEmmaAction.getMcDcCoverage()) {
-            mcdcCoverage = cocoEmmaAction.getMcDcCoverage().getPercentageFloat(cocoEmmaAction.getTestNotMandatory());
-            BigDecimal bigCoverage = new BigDecimal(mcdcCoverage);
-            bigCoverage = bigCoverage.setScale(1, BigDecimal.ROUND_HALF_EVEN);
-            mcdcCoverage = bigCoverage.floatValue();
-          }
-          if (null != cocoEmmaAction.getMccCoverage()) {
-            mccCoverage = cocoEmmaAction.getMccCoverage().getPercentageFloat(cocoEmmaAction.getTestNotMandatory());
-            BigDecimal bigCoverage = new BigDecimal(mccCoverage);
-            bigCoverage = bigCoverage.setScale(1, BigDecimal.ROUND_HALF_EVEN);
-            mccCoverage = bigCoverage.floatValue();
+  static float[] getCoverages(CocoEmmaBuildAction cocoEmmaAction, boolean round) {
+    float[] coverages = new float[CoverageMetric.count()];
+    if (cocoEmmaAction != null) {
+      for (CoverageMetric m : CoverageMetric.values()) {
+        Ratio ratio = cocoEmmaAction.getCoverage(m);
+        if (null != ratio) {
+          float coverage = ratio.getPercentageFloat(cocoEmmaAction.getTestNotMandatory());
+          if (round) {
+            coverage = Utils.roundFLoat(1, BigDecimal.ROUND_HALF_EVEN, coverage);
           }
+          coverages[m.ordinal()] = coverage;
         }
       }
-      summary.addCoverageResult(
-              new EmmaCoverageResultSummary(
-                  job, 
-                  blockCoverage, 
-                  lineCoverage, 
-                  methodCoverage,
-                  classCoverage, 
-                  decisionCoverage,
-                  conditionCoverage,
-                  mcdcCoverage,
-                  mccCoverage
-                  )
-              );
     }
-    return summary;
+    return coverages;
+  }
+
+  private static EmmaCoverageResultSummary newSummary(Job job, float[] coverages) {
+    return new EmmaCoverageResultSummary(
+            job,
+            coverages[CoverageMetric.BLOCK.ordinal()],
+            coverages[CoverageMetric.LINE.ordinal()],
+            coverages[CoverageMetric.METHOD.ordinal()],
+            coverages[CoverageMetric.CLASS.ordinal()],
+            coverages[CoverageMetric.DECISION.ordinal()],
+            coverages[CoverageMetric.CONDITION.ordinal()],
+            coverages[CoverageMetric.MCDC.ordinal()],
+            coverages[CoverageMetric.MCC.ordinal()]
+            );
   }
 }
@@ -0,0 +1,172 @@
+package hudson.plugins.cocoemma.portlet;
+
+import hudson.model.Job;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Collects the data of the jobs of a dashboard in parallel, as reading the builds
+ * of a job may load them from the disk.
+ *
+ * <p>
+ * The results are in the order of the jobs. A job that fails or takes too long has
+ * a null result, and does not hold up the others: each job gets {@link #TIMEOUT},
+ * counted from when it starts running, and the whole call {@link #TOTAL_TIMEOUT}.
+ */
+final class JobCollector {
+
+  /**
+   * Number of jobs read at the same time. 1 or less reads them one at a time, in the
+   * thread rendering the portlet.
+   */
+  static final int THREADS = Integer.getInteger(JobCollector.class.getName() + ".THREADS", 4);
+
+  /**
+   * Maximum number of jobs waiting for a thread. Beyond that, the rendering thread
+   * reads the job itself.
+   */
+  static final int QUEUE = Math.max(1, Integer.getInteger(JobCollector.class.getName() + ".QUEUE", 256));
+
+  /**
+   * How long a job may take once it runs, in seconds.
+   */
+  static final long TIMEOUT = Long.getLong(JobCollector.class.getName() + ".TIMEOUT", 30);
+
+  /**
+   * How long all the jobs of a dashboard may take, in seconds. The jobs not done by
+   * then, running or still waiting for a thread, are cancelled.
+   */
+  static final long TOTAL_TIMEOUT = Long.getLong(JobCollector.class.getName() + ".TOTAL_TIMEOUT", 60);
+
+  private static ThreadPoolExecutor executor;
+
+  /**
+   * What is collected from each job.
+   */
+  interface Task<T> {
+    T collect(Job job) throws Exception;
+  }
+
+  private JobCollector() {
+  }
+
+  private static synchronized ThreadPoolExecutor getExecutor() {
+    if (executor == null) {
+      executor = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<Runnable>(QUEUE),
+          new NamingThreadFactory(new DaemonThreadFactory(), "CocoEmma dashboard"));
+      executor.allowCoreThreadTimeOut(true);
+    }
+    return executor;
+  }
+
+  /**
+   * Collects the data of each job.
+   *
+   * @return the results, in the order of the jobs, null for the jobs that failed
+   *         or timed out
+   */
+  static <T> List<T> collect(List<Job> jobs, final Task<T> task) {
+    List<T> results = new ArrayList<T>(jobs.size());
+    if (THREADS <= 1 || jobs.size() <= 1) {
+      for (Job job : jobs) {
+        results.add(collectQuietly(job, task));
+      }
+      return results;
+    }
+
+    List<Timed<T>> futures = new ArrayList<Timed<T>>(jobs.size());
+    for (final Job job : jobs) {
+      Timed<T> f = new Timed<T>(new Callable<T>() {
+        public T call() {
+          return collectQuietly(job, task);
+        }
+      });
+      try {
+        getExecutor().execute(f);
+      } catch (RejectedExecutionException e) {
+        f.run();
+      }
+      futures.add(f);
+    }
+
+    long timeout = TimeUnit.SECONDS.toNanos(TIMEOUT);
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TOTAL_TIMEOUT);
+    for (int i = 0; i < futures.size(); i++) {
+      Timed<T> f = futures.get(i);
+      T result = null;
+      try {
+        while (true) {
+          long now = System.nanoTime();
+          // until the job starts, wait for it to start
+          long limit = Math.min(deadline, f.isRunning() ? f.started + timeout : now + timeout);
+          try {
+            result = f.get(Math.max(0, limit - now), TimeUnit.NANOSECONDS);
+            break;
+          } catch (TimeoutException e) {
+            now = System.nanoTime();
+            if (now - deadline >= 0 || f.isRunning() && now - f.started >= timeout) {
+              f.cancel(true);
+              LOGGER.warning("Timed out reading the coverage of " + jobs.get(i).getFullName());
+              break;
+            }
+          }
+        }
+      } catch (ExecutionException e) {
+        // collectQuietly does not throw
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        f.cancel(true);
+      }
+      results.add(result);
+    }
+    return results;
+  }
+
+  /**
+   * Remembers when the job started running.
+   */
+  private static final class Timed<T> extends FutureTask<T> {
+    volatile long started;
+    private volatile boolean running;
+
+    Timed(Callable<T> callable) {
+      super(callable);
+    }
+
+    boolean isRunning() {
+      return running;
+    }
+
+    @Override
+    public void run() {
+      started = System.nanoTime();
+      running = true;
+      super.run();
+    }
+  }
+
+  private static <T> T collectQuietly(Job job, Task<T> task) {
+    try {
+      return task.collect(job);
+    } catch (Exception e) {
+      LOGGER.log(Level.WARNING, "Failed to read the coverage of " + job.getFullName(), e);
+      return null;
+    }
+  }
+
+  private static final Logger LOGGER = Logger.getLogger(JobCollector.class.getName());
+}
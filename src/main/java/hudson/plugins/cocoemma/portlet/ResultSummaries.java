@@ -0,0 +1,117 @@
+package hudson.plugins.cocoemma.portlet;
+
+import hudson.Extension;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.plugins.cocoemma.portlet.bean.EmmaCoverageResultSummary;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Coverage of the last successful build of each job shown in a grid portlet, so that
+ * refreshing a dashboard does not read the builds of all its jobs again.
+ *
+ * <p>
+ * The summary of a job is dropped when one of its builds completes or is deleted,
+ * as its last successful build may then change.
+ */
+final class ResultSummaries {
+
+  /**
+   * Stands for a job whose last successful build has no coverage.
+   */
+  private static final EmmaCoverageResultSummary NONE = new EmmaCoverageResultSummary();
+
+  private static final ConcurrentMap<String, Entry> summaries = new ConcurrentHashMap<String, Entry>();
+
+  /**
+   * The summary of a job, and how many times it was dropped, so that a summary read
+   * before a build of the job completed is not cached after it.
+   */
+  private static final class Entry {
+    final long generation;
+    /**
+     * Null once dropped.
+     */
+    final EmmaCoverageResultSummary summary;
+
+    Entry(long generation, EmmaCoverageResultSummary summary) {
+      this.generation = generation;
+      this.summary = summary;
+    }
+  }
+
+  private ResultSummaries() {
+  }
+
+  /**
+   * Gets the cached summary of the job.
+   *
+   * @return null if it is not cached, {@link #NONE} if the job is not shown
+   */
+  static EmmaCoverageResultSummary get(Job job) {
+    Entry e = summaries.get(job.getFullName());
+    return e != null ? e.summary : null;
+  }
+
+  static boolean isNone(EmmaCoverageResultSummary summary) {
+    return summary == NONE;
+  }
+
+  /**
+   * Gets the generation of the summary of the job, to be read before the job.
+   */
+  static long generation(Job job) {
+    Entry e = summaries.get(job.getFullName());
+    return e != null ? e.generation : 0;
+  }
+
+  /**
+   * Caches the summary of the job, null if the job is not shown, unless its summary
+   * was dropped since the given {@link #generation(Job)}.
+   */
+  static void put(Job job, EmmaCoverageResultSummary summary, long since) {
+    String key = job.getFullName();
+    Entry e = summaries.get(key);
+    if ((e != null ? e.generation : 0) != since) {
+      return;
+    }
+    Entry n = new Entry(since, summary != null ? summary : NONE);
+    // not cached if the summary is dropped meanwhile
+    if (e == null) {
+      summaries.putIfAbsent(key, n);
+    } else {
+      summaries.replace(key, e, n);
+    }
+  }
+
+  static void remove(Job job) {
+    String key = job.getFullName();
+    while (true) {
+      Entry e = summaries.get(key);
+      Entry n = new Entry((e != null ? e.generation : 0) + 1, null);
+      if (e == null ? summaries.putIfAbsent(key, n) == null : summaries.replace(key, e, n)) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Drops the summary of the job when one of its builds completes or is deleted.
+   */
+  @Extension
+  public static final class Listener extends RunListener<Run<?, ?>> {
+    @Override
+    public void onCompleted(Run<?, ?> run, TaskListener listener) {
+      remove(run.getParent());
+    }
+
+    @Override
+    public void onDeleted(Run<?, ?> run) {
+      remove(run.getParent());
+    }
+  }
+}
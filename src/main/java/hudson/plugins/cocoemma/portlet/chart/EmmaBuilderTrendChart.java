@@ -29,6 +29,7 @@
  */
 package hudson.plugins.cocoemma.portlet.chart;
 
+import hudson.plugins.cocoemma.TrendTable;
 import hudson.plugins.cocoemma.portlet.EmmaLoadData;
 import hudson.plugins.cocoemma.portlet.Messages;
 import hudson.plugins.cocoemma.portlet.bean.EmmaCoverageResultSummary;
@@ -37,6 +38,7 @@ import hudson.plugins.cocoemma.portlet.utils.Utils;
 
 import java.awt.BasicStroke;
 import java.awt.Color;
+import java.io.IOException;
 import java.util.List;
 import java.util.Map;
 
@@ -48,17 +50,17 @@ import org.jfree.chart.axis.NumberAxis;
 import org.jfree.chart.plot.CategoryPlot;
 import org.jfree.chart.plot.PlotOrientation;
 import org.jfree.chart.renderer.category.CategoryItemRenderer;
-import org.jfree.data.category.CategoryDataset;
 import java.time.LocalDate;
 
 import hudson.Extension;
 import hudson.model.Descriptor;
 import hudson.model.Job;
 import hudson.plugins.view.dashboard.DashboardPortlet;
-import hudson.util.DataSetBuilder;
 import hudson.util.Graph;
 import hudson.util.ShiftedCategoryAxis;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
 
 /**
  * A portlet for Emma coverage results - Trend Chart.
@@ -112,16 +114,33 @@ public class EmmaBuilderTrendChart extends DashboardPortlet {
    * @return Graph a summary graph
    */
   public Graph getSummaryGraph() {
+    return createTrendChart(loadSummaries(), width, height);
+  }
 
-    Map<LocalDate, EmmaCoverageResultSummary> summaries;
+  /**
+   * Sends the data of the chart as JSON, to be drawn by the browser.
+   * The PNG of {@link #getSummaryGraph()} is the fallback.
+   *
+   * @param req
+   *          the request
+   * @param rsp
+   *          the response
+   * @throws IOException
+   *           if the response cannot be written
+   */
+  public void doSummaryTrend(StaplerRequest req, StaplerResponse rsp) throws IOException {
+    Map<LocalDate, EmmaCoverageResultSummary> summaries = loadSummaries();
+    TrendTable<LocalDate> trend = summaries == null ? new TrendTable<LocalDate>() : buildTrend(summaries);
+    trend.sendJson(req, rsp);
+  }
+
+  private Map<LocalDate, EmmaCoverageResultSummary> loadSummaries() {
 
     // Retrieve Dashboard View jobs
     List<Job> jobs = getDashboard().getJobs();
 
     // Fill a HashMap with the data will be showed in the chart
-    summaries = EmmaLoadData.loadChartDataWithinRange(jobs, daysNumber);
-
-    return createTrendChart(summaries, width, height);
+    return EmmaLoadData.loadChartDataWithinRange(jobs, daysNumber);
   }
 
   /**
@@ -155,7 +174,7 @@ public class EmmaBuilderTrendChart extends DashboardPortlet {
         int lineNumber = 0;
 
         JFreeChart chart = ChartFactory.createLineChart("", Constants.AXIS_LABEL, Constants.AXIS_LABEL_VALUE,
-          buildDataSet(summaries), PlotOrientation.VERTICAL, true, false, false);
+          buildTrend(summaries).toDataSetBuilder().build(), PlotOrientation.VERTICAL, true, false, false);
 
         chart.setBackgroundPaint(Color.white);
 
@@ -194,16 +213,16 @@ public class EmmaBuilderTrendChart extends DashboardPortlet {
   }
 
   /**
-   * Build data set.
+   * Build the values of the chart.
    *
    * @param summaries
    *          HashMap containing data of chart.
-   * @return CategoryDataset Interface for a dataset with one or more
-   *         series, and values associated with categories.
+   * @return TrendTable the average coverages of each day, one series
+   *         per metric.
    */
-  private static CategoryDataset buildDataSet(Map<LocalDate, EmmaCoverageResultSummary> summaries) {
+  private static TrendTable<LocalDate> buildTrend(Map<LocalDate, EmmaCoverageResultSummary> summaries) {
 
-    DataSetBuilder<String, LocalDate> dataSetBuilder = new DataSetBuilder<String, LocalDate>();
+    TrendTable<LocalDate> trend = new TrendTable<LocalDate>();
 
     for (Map.Entry<LocalDate, EmmaCoverageResultSummary> entry : summaries.entrySet()) {
       float blockCoverage = 0;
@@ -231,17 +250,17 @@ public class EmmaBuilderTrendChart extends DashboardPortlet {
         count++;
       }
 
-      dataSetBuilder.add((blockCoverage / count), "block", entry.getKey());
-      dataSetBuilder.add((classCoverage / count), "class", entry.getKey());
-      dataSetBuilder.add((lineCoverage / count), "line", entry.getKey());
-      dataSetBuilder.add((methodCoverage / count), "method", entry.getKey());
-      dataSetBuilder.add((decisionCoverage / count), "decision", entry.getKey());
-      dataSetBuilder.add((conditionCoverage / count), "condition", entry.getKey());
-      dataSetBuilder.add((mcdcCoverage / count), "MC/DC", entry.getKey());
-      dataSetBuilder.add((mccCoverage / count), "xMCC", entry.getKey());
+      trend.add((blockCoverage / count), "block", entry.getKey());
+      trend.add((classCoverage / count), "class", entry.getKey());
+      trend.add((lineCoverage / count), "line", entry.getKey());
+      trend.add((methodCoverage / count), "method", entry.getKey());
+      trend.add((decisionCoverage / count), "decision", entry.getKey());
+      trend.add((conditionCoverage / count), "condition", entry.getKey());
+      trend.add((mcdcCoverage / count), "MC/DC", entry.getKey());
+      trend.add((mccCoverage / count), "xMCC", entry.getKey());
     }
 
-    return dataSetBuilder.build();
+    return trend;
   }
 
   /**
@@ -99,7 +99,7 @@ public final class Utils {
     for (Job job : jobs) {
       Run lastRun = job.getLastBuild();
       if (lastRun != null) {
-        LocalDate date = LocalDate.ofEpochDay(lastRun.getTimestamp().toInstant().getEpochSecond());
+        LocalDate date = getDate(lastRun);
         if (lastDate == null) {
           lastDate = date;
         }
@@ -111,6 +111,17 @@ public final class Utils {
     return lastDate;
   }
 
+  /**
+   * Gets the day on which the build was started, in the time zone of the controller.
+   *
+   * @param run
+   *          a job execution
+   * @return LocalDate the date of the build
+   */
+  public static LocalDate getDate(Run run) {
+    return run.getTimestamp().toInstant().atZone(ZoneId.systemDefault()).toLocalDate();
+  }
+
   /**
    * Method for rounding float values according to the requested mode.
    *
@@ -123,8 +134,16 @@ public final class Utils {
    * @return the rounded value
    */
   public static float roundFLoat(int scale, int roundingMode, float value) {
+    // the product of a float and a power of ten up to 10^8 is exact as a double
+    if (roundingMode == BigDecimal.ROUND_HALF_EVEN && scale >= 0 && scale < POWERS_OF_TEN.length
+        && !Float.isNaN(value) && !Float.isInfinite(value)) {
+      double power = POWERS_OF_TEN[scale];
+      return (float) (Math.rint(value * power) / power);
+    }
     BigDecimal bigDecimal = new BigDecimal(value);
     bigDecimal = bigDecimal.setScale(scale, roundingMode);
     return bigDecimal.floatValue();
   }
+
+  private static final double[] POWERS_OF_TEN = {1, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8};
 }
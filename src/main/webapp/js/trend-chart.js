@@ -0,0 +1,122 @@
+/*
+ * Draws the coverage trend charts in the browser from the JSON of a TrendTable:
+ *   {"labels":["#1","#2"],"series":[{"name":"class","values":[50.0,null]}]}
+ * Each chart is a <div class="cocoemma-trend"> with data-json, data-png, data-width
+ * and data-height attributes. If the JSON cannot be loaded, the PNG rendered by the
+ * controller is shown instead.
+ */
+(function () {
+  var SVG = "http://www.w3.org/2000/svg";
+  var COLORS = ["#cc0000", "#3465a4", "#73d216", "#edd400", "#75507b", "#f57900", "#c17d11", "#555753"];
+  var LEGEND_WIDTH = 110, MARGIN = 6, AXIS_WIDTH = 28, LABEL_HEIGHT = 16;
+
+  function el(name, attrs, parent) {
+    var e = document.createElementNS(SVG, name);
+    for (var a in attrs) {
+      if (attrs.hasOwnProperty(a)) {
+        e.setAttribute(a, attrs[a]);
+      }
+    }
+    if (parent) {
+      parent.appendChild(e);
+    }
+    return e;
+  }
+
+  function text(value, attrs, parent) {
+    var t = el("text", attrs, parent);
+    t.appendChild(document.createTextNode(value));
+    return t;
+  }
+
+  function fallback(div) {
+    var img = document.createElement("img");
+    img.src = div.getAttribute("data-png");
+    img.width = div.getAttribute("data-width");
+    img.height = div.getAttribute("data-height");
+    div.innerHTML = "";
+    div.appendChild(img);
+  }
+
+  function draw(div, trend) {
+    var width = +div.getAttribute("data-width"), height = +div.getAttribute("data-height");
+    var labels = trend.labels, series = trend.series;
+    var left = MARGIN + AXIS_WIDTH, top = MARGIN;
+    var plotWidth = Math.max(10, width - left - LEGEND_WIDTH - MARGIN);
+    var plotHeight = Math.max(10, height - top - LABEL_HEIGHT - MARGIN);
+    var step = labels.length > 1 ? plotWidth / (labels.length - 1) : 0;
+
+    var svg = el("svg", {width: width, height: height, "class": "cocoemma-trend-chart", role: "img"});
+    for (var p = 0; p <= 100; p += 20) {
+      var y = top + plotHeight * (1 - p / 100);
+      el("line", {x1: left, x2: left + plotWidth, y1: y, y2: y, stroke: p === 0 ? "#000" : "#ddd"}, svg);
+      text(p, {x: left - 4, y: y + 4, "text-anchor": "end", "font-size": 10}, svg);
+    }
+    if (labels.length > 0) {
+      text(labels[0], {x: left, y: height - MARGIN, "font-size": 10}, svg);
+      text(labels[labels.length - 1], {x: left + plotWidth, y: height - MARGIN, "text-anchor": "end", "font-size": 10}, svg);
+    }
+
+    for (var s = 0; s < series.length; s++) {
+      var color = COLORS[s % COLORS.length], values = series[s].values, path = "", pen = "M";
+      for (var i = 0; i < values.length; i++) {
+        if (values[i] === null) {
+          pen = "M";
+          continue;
+        }
+        var x = left + step * i, vy = top + plotHeight * (1 - values[i] / 100);
+        path += pen + x.toFixed(1) + "," + vy.toFixed(1);
+        pen = "L";
+        var dot = el("circle", {cx: x, cy: vy, r: 2.5, fill: color}, svg);
+        el("title", {}, dot).appendChild(document.createTextNode(series[s].name + " " + labels[i] + ": " + values[i].toFixed(1) + "%"));
+      }
+      el("path", {d: path, fill: "none", stroke: color, "stroke-width": 2}, svg);
+      var ly = top + 14 * s + 8;
+      el("rect", {x: left + plotWidth + 10, y: ly - 8, width: 10, height: 10, fill: color}, svg);
+      text(series[s].name, {x: left + plotWidth + 24, y: ly + 1, "font-size": 11}, svg);
+    }
+
+    div.innerHTML = "";
+    div.appendChild(svg);
+  }
+
+  function load(div) {
+    if (div.getAttribute("data-loaded")) {
+      return;
+    }
+    div.setAttribute("data-loaded", "true");
+    if (!document.createElementNS || !window.XMLHttpRequest || !window.JSON) {
+      fallback(div);
+      return;
+    }
+    var xhr = new XMLHttpRequest();
+    xhr.open("GET", div.getAttribute("data-json"));
+    xhr.onreadystatechange = function () {
+      if (xhr.readyState !== 4) {
+        return;
+      }
+      try {
+        if (xhr.status !== 200) {
+          throw new Error("HTTP " + xhr.status);
+        }
+        draw(div, JSON.parse(xhr.responseText));
+      } catch (e) {
+        fallback(div);
+      }
+    };
+    xhr.send();
+  }
+
+  function loadAll() {
+    var divs = document.querySelectorAll("div.cocoemma-trend");
+    for (var i = 0; i < divs.length; i++) {
+      load(divs[i]);
+    }
+  }
+
+  if (document.readyState === "loading") {
+    document.addEventListener("DOMContentLoaded", loadAll);
+  } else {
+    loadAll();
+  }
+})();
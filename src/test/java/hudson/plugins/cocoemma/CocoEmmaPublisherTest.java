@@ -1,9 +1,16 @@
 package hudson.plugins.cocoemma;
 
 import hudson.FilePath;
+import hudson.model.TaskListener;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
 
 /**
  * 
@@ -43,20 +50,146 @@ public class CocoEmmaPublisherTest extends AbstractEmmaTestBase {
 		
 		// Look for files in the entire workspace recursively without providing 
 		// the includes parameter
-		FilePath[] reports = CocoEmmaPublisher.locateCoverageReports(workspace, "**/coverage*.xml");
+		FilePath[] reports = CocoEmmaPublisher.locateCoverageReports(workspace, "**/coverage*.xml", TaskListener.NULL);
 		assertEquals(2 , reports.length);
 
 		// Generate a includes string and look for files 
 		String includes = f1.getName() + "; " + f2.getName() + "; " + d1.getName();
-		reports = CocoEmmaPublisher.locateCoverageReports(workspace, includes);
+		reports = CocoEmmaPublisher.locateCoverageReports(workspace, includes, TaskListener.NULL);
 		assertEquals(3, reports.length);
+	}
+
+	public void testCollectReportsInOneCall() throws Exception {
+		File w = Files.createTempDirectory("workspace" + ".test").toFile();
+		File build = Files.createTempDirectory("build" + ".test").toFile();
+		try {
+			File reports = new File(w, "reports");
+			reports.mkdir();
+			Files.copy(getClass().getResourceAsStream("coverage.xml"), new File(reports, "coverage.xml").toPath());
+			Files.copy(getClass().getResourceAsStream("coverageh.xml"), new File(reports, "coverageh.xml").toPath());
+
+			File folder = new File(build, "cocoemma");
+			AgentReportCollector.Result r = AgentReportCollector.collect(new FilePath(w), "reports/*.xml", folder, null, null, false, TaskListener.NULL);
+			assertEquals(2, r.paths.length);
+			assertEquals(2, r.hashes.length);
+			assertEquals(64, r.hashes[0].length());
+			assertFalse(r.hashes[0].equals(r.hashes[1]));
+
+			// stored gzipped under the usual names, with the same contents
+			assertTrue(Arrays.equals(Files.readAllBytes(new File(r.paths[0]).toPath()),
+					read(new File(folder, "coverage.xml.gz"))));
+			assertTrue(Arrays.equals(Files.readAllBytes(new File(r.paths[1]).toPath()),
+					read(new File(folder, "coverage1.xml.gz"))));
+			assertEquals(1, build.list().length);
 
-		// Save files in local workspace
-		FilePath local = workspace.child("coverage_localfolder");
-		CocoEmmaPublisher.saveCoverageReports(local, reports);
-		assertEquals(3, local.list().size());
-		local.deleteRecursive();
+			CoverageReport report = ReportSnapshot.read(null, ByteBuffer.wrap(r.snapshot));
+			assertRatio(report.getLineCoverage(), 8355.3f, 14828.0f);
+
+			// nothing is sent when the reports are not kept
+			String[] hashes = r.hashes;
+			r = AgentReportCollector.collect(new FilePath(w), "reports/*.xml", null, null, null, false, TaskListener.NULL);
+			assertTrue(Arrays.equals(hashes, r.hashes));
+			assertNotNull(r.snapshot);
+		} finally {
+			new FilePath(w).deleteRecursive();
+			new FilePath(build).deleteRecursive();
+		}
+	}
+
+	public void testReportsArePooled() throws Exception {
+		File w = Files.createTempDirectory("workspace" + ".test").toFile();
+		File job = Files.createTempDirectory("job" + ".test").toFile();
+		try {
+			File reports = new File(w, "reports");
+			reports.mkdir();
+			Files.copy(getClass().getResourceAsStream("coverage.xml"), new File(reports, "coverage.xml").toPath());
+			Files.copy(getClass().getResourceAsStream("coverageh.xml"), new File(reports, "coverageh.xml").toPath());
+			File pool = new File(job, ReportPool.FOLDER_NAME);
+
+			File first = new File(job, "1");
+			AgentReportCollector.Result r = AgentReportCollector.collect(new FilePath(w), "reports/*.xml", first, pool, null, true, TaskListener.NULL);
+			assertFalse(r.unchanged);
+			assertNotNull(r.snapshot);
+			assertEquals(2, pool.list().length);
+			ReportPool.writeHashes(first, r.hashes);
+
+			// the pooled reports handed to the agent are not pruned meanwhile
+			for (File f : pool.listFiles()) {
+				assertTrue(f.setLastModified(f.lastModified() - TimeUnit.HOURS.toMillis(2)));
+			}
+			assertEquals(2, ReportPool.pooled(pool, r.hashes).length);
+			ReportPool.prune(pool, job);
+			assertEquals(2, pool.list().length);
+
+			// same reports: taken from the pool, and not parsed
+			String[] previous = ReportPool.readHashes(first);
+			assertTrue(Arrays.equals(r.hashes, previous));
+			File second = new File(job, "2");
+			r = AgentReportCollector.collect(new FilePath(w), "reports/*.xml", second, pool, previous, true, TaskListener.NULL);
+			assertTrue(r.unchanged);
+			assertNull(r.snapshot);
+			assertTrue(Arrays.equals(read(new File(first, "coverage.xml.gz")), read(new File(second, "coverage.xml.gz"))));
+			assertTrue(Arrays.equals(read(new File(first, "coverage1.xml.gz")), read(new File(second, "coverage1.xml.gz"))));
+			assertEquals(2, pool.list().length);
+
+			// one report changed: only that one is added
+			Files.write(new File(reports, "coverage.xml").toPath(), "<!-- changed -->".getBytes("US-ASCII"),
+					StandardOpenOption.APPEND);
+			File third = new File(job, "3");
+			r = AgentReportCollector.collect(new FilePath(w), "reports/*.xml", third, pool, previous, true, TaskListener.NULL);
+			assertFalse(r.unchanged);
+			assertNotNull(r.snapshot);
+			assertEquals(3, pool.list().length);
+			assertTrue(Arrays.equals(Files.readAllBytes(new File(r.paths[0]).toPath()),
+					read(new File(third, "coverage.xml.gz"))));
+		} finally {
+			new FilePath(w).deleteRecursive();
+			new FilePath(job).deleteRecursive();
+		}
+	}
+
+	public void testPoolIsPrunedWithoutLinkCounts() throws Exception {
+		File job = Files.createTempDirectory("job" + ".test").toFile();
+		try {
+			File pool = new File(job, ReportPool.FOLDER_NAME);
+			File builds = new File(job, "builds");
+			pool.mkdirs();
+			String used = "0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef";
+			String unused = "fedcba9876543210fedcba9876543210fedcba9876543210fedcba9876543210";
+			File folder = new File(builds, "1/cocoemma");
+			folder.mkdirs();
+			ReportPool.writeHashes(folder, new String[] { used });
+			File[] files = { ReportPool.getFile(pool, used), ReportPool.getFile(pool, unused), new File(pool, "coverage.xml1.tmp") };
+			for (File f : files) {
+				f.createNewFile();
+				assertTrue(f.setLastModified(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(2)));
+			}
+			File recent = new File(pool, "coverage.xml2.tmp");
+			recent.createNewFile();
+
+			ReportPool.prune(pool, builds, false);
+			assertTrue(files[0].exists());
+			assertFalse(files[1].exists());
+			assertFalse(files[2].exists());
+			assertTrue(recent.exists());
+		} finally {
+			new FilePath(job).deleteRecursive();
+		}
+	}
 
+	private static byte[] read(File f) throws Exception {
+		InputStream in = ReportStorage.open(new FilePath(f));
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buf = new byte[8192];
+			int n;
+			while ((n = in.read(buf)) > 0) {
+				out.write(buf, 0, n);
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
 	}
 
 }
@@ -68,4 +68,52 @@ public class CoverageObjectTest extends AbstractEmmaTestBase {
     	assertTrue(b.toString().contains("'nowrap'"));
     }
  
+    public void testCoverageMetricLookup() throws Exception {
+        assertEquals(CoverageMetric.CLASS, CoverageMetric.forType("class, %"));
+        assertEquals(CoverageMetric.MCDC, CoverageMetric.forType("mcdc, %"));
+        assertNull(CoverageMetric.forType("branch, %"));
+        for (CoverageMetric m : CoverageMetric.values()) {
+            assertEquals(m, CoverageMetric.forType(m.getType()));
+        }
+
+        PackageReport p = new PackageReport();
+        CoverageElement e = new CoverageElement();
+        e.setType("line, %");
+        e.setValue("50% (2/4)");
+        p.addCoverage(e);
+        assertEquals(p.getLineCoverage(), p.getCoverage(CoverageMetric.LINE));
+        assertRatio(p.getCoverage(CoverageMetric.LINE), 2, 4);
+        assertTrue(p.hasCoverage(CoverageMetric.LINE));
+        assertFalse(p.hasCoverage(CoverageMetric.MCC));
+
+        e.setType("branch, %");
+        try {
+            p.addCoverage(e);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    public void testPackedMetrics() throws Exception {
+        ClassReport c = new ClassReport();
+        c.addCoverage(CoverageMetric.MCC, new Ratio(1, 2));
+        c.addCoverage(CoverageMetric.CLASS, new Ratio(3, 4));
+        c.addCoverage(CoverageMetric.LINE, new Ratio(5, 6));
+        c.addCoverage(CoverageMetric.CLASS, new Ratio(1, 1));
+        assertRatio(c.getClassCoverage(), 4, 5);
+        assertRatio(c.getLineCoverage(), 5, 6);
+        assertRatio(c.getMccCoverage(), 1, 2);
+        assertFalse(c.hasCoverage(CoverageMetric.METHOD));
+        assertFalse(c.getMethodCoverage().isInitialized());
+
+        ClassReport other = new ClassReport();
+        other.addCoverage(CoverageMetric.METHOD, new Ratio(7, 8));
+        other.addCoverage(CoverageMetric.MCC, new Ratio(1, 2));
+        c.merge(other);
+        assertRatio(c.getClassCoverage(), 4, 5);
+        assertRatio(c.getMethodCoverage(), 7, 8);
+        assertRatio(c.getLineCoverage(), 5, 6);
+        assertRatio(c.getMccCoverage(), 2, 4);
+    }
+
 }
@@ -1,5 +1,18 @@
 package hudson.plugins.cocoemma;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
 /**
  * @author Kohsuke Kawaguchi
  */
@@ -27,6 +40,34 @@ public class CoverageReportTest extends AbstractEmmaTestBase {
       
     }
     
+    public void testNoReports() throws Exception {
+        CoverageReport r = new CoverageReport(null, new InputStream[0]);
+        assertTrue(r.getChildren().isEmpty());
+        assertEquals(0f, r.getLineCoverage().getDenominator());
+    }
+
+    public void testMergeReportsSharingPackages() throws Exception {
+        CoverageReport r = new CoverageReport(null,
+            getClass().getResourceAsStream("coverageh.xml"),
+            getClass().getResourceAsStream("coverage.xml"),
+            getClass().getResourceAsStream("coverageh.xml"));
+
+        assertRatio(r.getLineCoverage(), 8364.3f, 16521.0f);
+        assertEquals(16, r.getChildren().size());
+
+        PackageReport pkg = r.getChildren().get("org.apache.hupa.client.validation");
+        assertRatio(pkg.getLineCoverage(), 18, 54);
+        assertSame(r, pkg.getParent());
+
+        SourceFileReport src = pkg.getChildren().get("EmailListValidator.java");
+        assertRatio(src.getLineCoverage(), 18, 36);
+        assertSame(pkg, src.getParent());
+
+        MethodReport mth = src.getChildren().get("EmailListValidator").getChildren().get("isValidAddress (String): boolean");
+        assertRatio(mth.getLineCoverage(), 2, 2);
+        assertFalse(mth.hasClassCoverage());
+    }
+
     public void testTreeReport() throws Exception {
         CoverageReport r = new CoverageReport(null,getClass().getResourceAsStream("coverageh.xml"));
         assertRatio(r.getLineCoverage(), 9, 1693);
@@ -67,4 +108,305 @@ public class CoverageReportTest extends AbstractEmmaTestBase {
         assertFalse(pkg.hasChildrenLineCoverage());
 
     }
+
+    public void testOnlyReportsOfDifferentFilesAreMerged() throws Exception {
+        // the overloads of a file keep the last one, as they always did
+        CoverageReport r = new CoverageReport(null, getClass().getResourceAsStream("coco1.xml"));
+        ClassReport argv = r.getChildren().values().iterator().next().getChildren().get("argv.cpp").getChildren().get("Argv");
+        assertRatio(argv.getChildren().get("Argv::Argv").getConditionCoverage(), 2, 3);
+
+        r = new CoverageReport(null,
+            getClass().getResourceAsStream("coco1.xml"),
+            getClass().getResourceAsStream("coco1.xml"));
+        argv = r.getChildren().values().iterator().next().getChildren().get("argv.cpp").getChildren().get("Argv");
+        assertRatio(argv.getChildren().get("Argv::Argv").getConditionCoverage(), 4, 6);
+        assertSame(argv, argv.getChildren().get("Argv::Argv").getParent());
+    }
+
+    public void testStreamingParserMatchesDigester() throws Exception {
+        String[] reports = { "coverage.xml", "coverageh.xml", "coco1.xml", "coco2.xml", "coco3.xml" };
+        for (String name : reports) {
+            CoverageReport stax = new CoverageReport(null, false, getClass().getResourceAsStream(name));
+            CoverageReport digester = new CoverageReport(null, true, getClass().getResourceAsStream(name));
+            assertSameTree(name, digester, stax);
+        }
+    }
+
+    public void testSnapshotRoundTrip() throws Exception {
+        String[] reports = { "coverage.xml", "coverageh.xml", "coco1.xml", "coco2.xml", "coco3.xml" };
+        for (String name : reports) {
+            CoverageReport r = new CoverageReport(null, getClass().getResourceAsStream(name));
+            PackageReport pkg = r.getChildren().values().iterator().next();
+            pkg.setFailed();
+
+            CoverageReport copy = ReportSnapshot.read(null, ByteBuffer.wrap(snapshot(r)));
+            assertSameTree(name, r, copy);
+            assertTrue(copy.isFailed());
+            assertTrue(copy.getChildren().get(pkg.getName()).isFailed());
+        }
+        CoverageReport r = new CoverageReport(null, getClass().getResourceAsStream("coverage.xml"));
+        CoverageReport copy = ReportSnapshot.read(null, ByteBuffer.wrap(snapshot(r)));
+        assertEquals(8346.3f, copy.getLineCoverage().getNumerator());
+    }
+
+    public void testSnapshotOfTheAgentIsStoredAsIs() throws Exception {
+        CoverageReport r = new CoverageReport(null, getClass().getResourceAsStream("coco1.xml"));
+        byte[] data = snapshot(r);
+        File f = File.createTempFile("report", ".snapshot");
+        try {
+            ReportSnapshot.write(data, f);
+            assertTrue(Arrays.equals(data, Files.readAllBytes(f.toPath())));
+            assertSameTree("stored", r, ReportSnapshot.read(null, f));
+        } finally {
+            f.delete();
+        }
+    }
+
+    public void testAgentSendsTheSnapshot() throws Exception {
+        File a = copy("coverage.xml"), b = copy("coverageh.xml");
+        try {
+            InputStream ia = new FileInputStream(a), ib = new FileInputStream(b);
+            byte[] snapshot;
+            try {
+                snapshot = AgentReportCollector.snapshot(ia, ib);
+            } finally {
+                ia.close();
+                ib.close();
+            }
+            CoverageReport r = new CoverageReport(null,
+                    getClass().getResourceAsStream("coverage.xml"),
+                    getClass().getResourceAsStream("coverageh.xml"));
+            assertSameTree("agent", r, ReportSnapshot.read(null, ByteBuffer.wrap(snapshot)));
+        } finally {
+            a.delete();
+            b.delete();
+        }
+    }
+
+    private File copy(String resource) throws IOException {
+        File f = File.createTempFile("coverage", ".xml");
+        Files.copy(getClass().getResourceAsStream(resource), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return f;
+    }
+
+    public void testSnapshotOfAnotherVersionIsRejected() throws Exception {
+        CoverageReport r = new CoverageReport(null, getClass().getResourceAsStream("coco1.xml"));
+        byte[] data = snapshot(r);
+        data[7]++;
+        try {
+            ReportSnapshot.read(null, ByteBuffer.wrap(data));
+            fail();
+        } catch (IOException expected) {
+        }
+        data = snapshot(r);
+        try {
+            ReportSnapshot.read(null, ByteBuffer.wrap(data, 0, data.length / 2).slice());
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    public void testDamagedSnapshotIsRejected() throws Exception {
+        CoverageReport r = new CoverageReport(null, getClass().getResourceAsStream("coco1.xml"));
+        // without the trailer, so that the skeleton is read again
+        byte[] data = snapshot(r);
+        data = Arrays.copyOf(data, data.length - ReportSnapshot.TRAILER_SIZE);
+        int child = (int) ByteBuffer.wrap(data).getLong(24) + ReportSnapshot.NODE_SIZE;
+
+        byte[] root = data.clone();
+        root[child] = ReportSnapshot.ROOT;
+        byte[] method = data.clone();
+        method[child] = ReportSnapshot.METHOD;
+        byte[] metrics = data.clone();
+        ByteBuffer.wrap(metrics).putLong(child + 24, data.length);
+        File f = File.createTempFile("report", ".snapshot");
+        try {
+            for (byte[] b : new byte[][] { root, method, metrics }) {
+                try {
+                    ReportSnapshot.read(null, ByteBuffer.wrap(b));
+                    fail();
+                } catch (IOException expected) {
+                }
+                // a mapped snapshot is checked as its nodes are created
+                Files.write(f.toPath(), b);
+                assertFalse(ReportSnapshot.isReadable(f));
+            }
+            Files.write(f.toPath(), data);
+            assertTrue(ReportSnapshot.isReadable(f));
+        } finally {
+            f.delete();
+        }
+        ReportSnapshot.read(null, ByteBuffer.wrap(data));
+
+        // the trailer of a snapshot read in the heap is checked
+        byte[] trailer = snapshot(r);
+        trailer[trailer.length - 1]++;
+        try {
+            ReportSnapshot.read(null, ByteBuffer.wrap(trailer));
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    public void testSkeletonIsCountedOnce() throws Exception {
+        CoverageReport r = new CoverageReport(null, getClass().getResourceAsStream("coverage.xml"));
+        // a structure no other test has
+        r.setName("skeleton" + System.nanoTime());
+        byte[] data = snapshot(r);
+        ReportIndex first = new ReportIndex(ByteBuffer.wrap(data));
+        ReportIndex second = new ReportIndex(ByteBuffer.wrap(data));
+        assertTrue(first.getCreatedSize() > second.getCreatedSize());
+    }
+
+    public void testSnapshotsOfTheSameStructureShareTheSkeleton() throws Exception {
+        CoverageReport r = new CoverageReport(null, getClass().getResourceAsStream("coverage.xml"));
+        byte[] first = snapshot(r);
+        r.getChildren().values().iterator().next().setFailed();
+        byte[] second = snapshot(r);
+        // as written before the structure hash was stored
+        byte[] old = Arrays.copyOf(first, first.length - ReportSnapshot.TRAILER_SIZE);
+
+        CoverageReport a = ReportSnapshot.read(null, ByteBuffer.wrap(first));
+        CoverageReport b = ReportSnapshot.read(null, ByteBuffer.wrap(second));
+        CoverageReport c = ReportSnapshot.read(null, ByteBuffer.wrap(old));
+        PackageReport pa = a.getChildren().values().iterator().next();
+        PackageReport pb = b.getChildren().values().iterator().next();
+        PackageReport pc = c.getChildren().values().iterator().next();
+        assertSame(pa.getName(), pb.getName());
+        assertSame(pa.getName(), pc.getName());
+        // the metrics are still those of each build
+        assertFalse(pa.isFailed());
+        assertTrue(pb.isFailed());
+        assertSameTree("old", a, c);
+    }
+
+    public void testSnapshotNodesAreCreatedOnAccess() throws Exception {
+        CoverageReport r = new CoverageReport(null, getClass().getResourceAsStream("coverageh.xml"));
+        File file = File.createTempFile("cocoemma", ".snapshot");
+        try {
+            ReportSnapshot.write(r, file);
+            CoverageReport copy = ReportSnapshot.read(null, file);
+
+            PackageReport pkg = copy.getDynamic("org.apache.hupa.client.validation", null, null);
+            assertNotNull(pkg);
+            assertSame(copy, pkg.getParent());
+            assertNull(copy.getDynamic("no.such.package", null, null));
+            SourceFileReport src = pkg.getDynamic("EmailListValidator.java", null, null);
+            assertSame(pkg, src.getParent());
+            assertSameTree("validation", r.getChildren().get(pkg.getName()), pkg);
+
+            // the nodes created on access are the ones of the full list
+            assertSame(pkg, copy.getChildren().get(pkg.getName()));
+            assertSame(src, pkg.getChildren().get(src.getName()));
+            assertSameTree("root", r, copy);
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testTrendIndex() throws Exception {
+        CoverageReport r = new CoverageReport(null, getClass().getResourceAsStream("coverageh.xml"));
+        PackageReport pkg = r.getChildren().get("org.apache.hupa.client.validation");
+        SourceFileReport src = pkg.getChildren().get("EmailListValidator.java");
+        File file = File.createTempFile("cocoemma", ".idx");
+        file.delete();
+        try {
+            assertNull(TrendIndex.read(file, 1, ""));
+            TrendIndex.append(file, 1, r);
+            TrendIndex.append(file, 2, r);
+            TrendIndex.append(file, 3, r);
+            TrendIndex.mark(file, 2, TrendIndex.FAILED);
+
+            List<TrendIndex.Point> trend = TrendIndex.read(file, 3, TrendIndex.pathOf(src)).points;
+            assertEquals(2, trend.size());
+            assertEquals(3, trend.get(0).build);
+            assertEquals(1, trend.get(1).build);
+            assertEquals(src.getLineCoverage(), trend.get(1).ratios[CoverageMetric.LINE.ordinal()]);
+            assertNull(trend.get(1).ratios[CoverageMetric.MCDC.ordinal()]);
+            assertEquals(pkg.getLineCoverage(), TrendIndex.read(file, 3, pkg.getName()).points.get(0).ratios[CoverageMetric.LINE.ordinal()]);
+            assertEquals(2, TrendIndex.read(file, 2, "").points.size());
+            assertEquals(1, TrendIndex.read(file, 2, "").oldest);
+            assertNull(TrendIndex.read(file, 4, ""));
+            assertTrue(TrendIndex.read(file, 3, "no.such.package").points.isEmpty());
+
+            // a build without the path is skipped, not the end of the trend
+            CoverageReport other = new CoverageReport(null, getClass().getResourceAsStream("coverage.xml"));
+            TrendIndex.append(file, 4, other);
+            TrendIndex.append(file, 5, r);
+            trend = TrendIndex.read(file, 5, TrendIndex.pathOf(src)).points;
+            assertEquals(3, trend.size());
+            assertEquals(3, trend.get(1).build);
+
+            // only the builds of the window are read
+            assertEquals(2, TrendIndex.read(file, 5, "", new TrendWindow(2, 0)).points.size());
+            trend = TrendIndex.read(file, 5, "", new TrendWindow(10, 3)).points;
+            assertEquals(3, trend.size());
+            assertEquals(3, trend.get(2).build);
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testTrendIndexIsCompacted() throws Exception {
+        CoverageReport r = new CoverageReport(null, getClass().getResourceAsStream("coverageh.xml"));
+        File file = File.createTempFile("cocoemma", ".idx");
+        file.delete();
+        try {
+            for (int i = 1; i <= 200; i++) {
+                TrendIndex.append(file, i, r);
+            }
+            TrendIndex.mark(file, 200, TrendIndex.FAILED);
+            long full = file.length();
+            for (int i = 1; i <= 150; i++) {
+                TrendIndex.mark(file, i, TrendIndex.DELETED);
+            }
+            assertTrue(file.length() < full / 2);
+
+            TrendIndex.Trend trend = TrendIndex.read(file, 200, "");
+            assertEquals(151, trend.oldest);
+            assertEquals(50, trend.points.size());
+            // still failed after the rewrite
+            assertEquals(49, TrendIndex.read(file, 199, "").points.size());
+            TrendIndex.append(file, 201, r);
+            assertEquals(50, TrendIndex.read(file, 201, "").points.size());
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static byte[] snapshot(CoverageReport r) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ReportSnapshot.write(r, out);
+        return out.toByteArray();
+    }
+
+    private void assertSameTree(String path, AbstractReport<?,?> expected, AbstractReport<?,?> actual) {
+        assertEquals(path, expected.getName(), actual.getName());
+        assertEquals(path, expected.getClass(), actual.getClass());
+        assertEquals(path + " failed", expected.isFailed(), actual.isFailed());
+        assertSameRatio(path + " class", expected.getClassCoverage(), actual.getClassCoverage());
+        assertSameRatio(path + " method", expected.getMethodCoverage(), actual.getMethodCoverage());
+        assertSameRatio(path + " block", expected.getBlockCoverage(), actual.getBlockCoverage());
+        assertSameRatio(path + " line", expected.getLineCoverage(), actual.getLineCoverage());
+        assertSameRatio(path + " decision", expected.getDecisionCoverage(), actual.getDecisionCoverage());
+        assertSameRatio(path + " condition", expected.getConditionCoverage(), actual.getConditionCoverage());
+        assertSameRatio(path + " mcdc", expected.getMcDcCoverage(), actual.getMcDcCoverage());
+        assertSameRatio(path + " mcc", expected.getMccCoverage(), actual.getMccCoverage());
+        if (expected instanceof AggregatedReport) {
+            Map<String, ? extends AbstractReport<?,?>> e = ((AggregatedReport<?,?,?>) expected).getChildren();
+            Map<String, ? extends AbstractReport<?,?>> a = ((AggregatedReport<?,?,?>) actual).getChildren();
+            assertEquals(path, e.keySet(), a.keySet());
+            Iterator<? extends AbstractReport<?,?>> ai = a.values().iterator();
+            for (AbstractReport<?,?> child : e.values()) {
+                AbstractReport<?,?> other = ai.next();
+                assertSame(actual, other.getParent());
+                assertSameTree(path + "/" + child.getName(), child, other);
+            }
+        }
+    }
+
+    private void assertSameRatio(String what, Ratio expected, Ratio actual) {
+        assertEquals(what, expected.isInitialized(), actual.isInitialized());
+        assertRatio(actual, expected.getNumerator(), expected.getDenominator());
+    }
 }
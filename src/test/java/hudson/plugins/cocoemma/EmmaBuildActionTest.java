@@ -1,5 +1,13 @@
 package hudson.plugins.cocoemma;
 
+import hudson.FilePath;
+import hudson.XmlFile;
+import hudson.model.TaskListener;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
 
 /**
  * @author Kohsuke Kawaguchi
@@ -102,4 +110,154 @@ public class EmmaBuildActionTest extends AbstractEmmaTestBase {
       assertEquals("Coverage: Class 186/334 (56%). Function 1347/2739 (49%). Statement (Block) 45039/84505 (53%). Line 8355.3/14828 (56%).",
                    description);
   }
+
+    public void testLoadReportInSinglePass() throws Exception {
+      EmmaHealthReportThresholds thresholds = new EmmaHealthReportThresholds(30, 90, 25, 80, 20, 70, 15, 60,20,70,21,71,22,72,23,73);
+      CoverageReport report = CocoEmmaBuildAction.loadReport(null, null, thresholds, new AdvancedSettings(), TaskListener.NULL,
+              new FilePath(new File(getClass().getResource("coverage.xml").toURI())),
+              new FilePath(new File(getClass().getResource("coverageh.xml").toURI())));
+      CocoEmmaBuildAction r = report.getAction();
+      assertRatio(r.clazz, 186, 334);
+      assertRatio(r.method, 1347, 2739);
+      assertRatio(r.block, 45039, 84505);
+      assertRatio(r.line, 8355.3f,14828);
+      assert(r.condition == null);
+      assertEquals("Coverage: Class 186/334 (56%). Function 1347/2739 (49%). Statement (Block) 45039/84505 (53%). Line 8355.3/14828 (56%).",
+                   r.getBuildHealth().getDescription());
+      assertRatio(report.getChildren().get("org.apache.hupa.client.validation").getLineCoverage(), 9, 27);
+  }
+
+  public void testSnapshotIsStaleWhenReportsAreNewer() throws Exception {
+      File dir = File.createTempFile("cocoemma", "");
+      dir.delete();
+      dir.mkdirs();
+      try {
+          File xml = new File(dir, "coverage.xml");
+          File snapshot = new File(dir, ReportSnapshot.FILE_NAME);
+          FilePath report = new FilePath(xml);
+          new FilePath(new File(getClass().getResource("coco1.xml").toURI())).copyTo(report);
+          assertFalse(ReportSnapshot.isUpToDate(snapshot, report));
+
+          ReportSnapshot.write(new CoverageReport(null, xml), snapshot);
+          assertTrue(snapshot.setLastModified(xml.lastModified() + 2000));
+          assertTrue(ReportSnapshot.isUpToDate(snapshot, report));
+          assertTrue(xml.setLastModified(snapshot.lastModified() + 2000));
+          assertFalse(ReportSnapshot.isUpToDate(snapshot, report));
+          assertFalse(new File(dir, ReportSnapshot.FILE_NAME + ".tmp").exists());
+      } finally {
+          new FilePath(dir).deleteRecursive();
+      }
+  }
+
+  public void testDamagedSnapshotIsNotReused() throws Exception {
+      File dir = File.createTempFile("cocoemma", "");
+      dir.delete();
+      dir.mkdirs();
+      try {
+          File xml = new File(dir, "coverage.xml");
+          File snapshot = new File(dir, ReportSnapshot.FILE_NAME);
+          new FilePath(new File(getClass().getResource("coco1.xml").toURI())).copyTo(new FilePath(xml));
+          assertFalse(ReportSnapshot.isReadable(snapshot));
+
+          ReportSnapshot.write(new CoverageReport(null, xml), snapshot);
+          assertTrue(ReportSnapshot.isReadable(snapshot));
+
+          RandomAccessFile f = new RandomAccessFile(snapshot, "rw");
+          try {
+              f.setLength(f.length() / 2);
+          } finally {
+              f.close();
+          }
+          assertFalse(ReportSnapshot.isReadable(snapshot));
+      } finally {
+          new FilePath(dir).deleteRecursive();
+      }
+  }
+
+  public void testReportsAreStoredCompressed() throws Exception {
+      File builds = File.createTempFile("builds", "");
+      builds.delete();
+      File dir = new File(builds, "1/cocoemma");
+      dir.mkdirs();
+      try {
+          File legacy = new File(dir, "coverage1.xml");
+          File snapshot = new File(dir, ReportSnapshot.FILE_NAME);
+          new FilePath(new File(getClass().getResource("coverageh.xml").toURI())).copyTo(new FilePath(legacy));
+          OutputStream out = ReportStorage.create(dir, "coverage.xml");
+          try {
+              new FilePath(new File(getClass().getResource("coverage.xml").toURI())).copyTo(out);
+          } finally {
+              out.close();
+          }
+          assertTrue(new File(dir, "coverage.xml.gz").exists());
+
+          // a report being compressed is only listed once
+          File half = new File(dir, "coverage1.xml.gz");
+          half.createNewFile();
+          assertEquals(2, CocoEmmaBuildAction.getEmmaReports(dir).length);
+          half.delete();
+
+          assertTrue(legacy.setLastModified(legacy.lastModified() - 10000));
+          long time = legacy.lastModified();
+          ReportSnapshot.write(new CoverageReport(null, legacy), snapshot);
+          ReportStorage.migrate(builds);
+          assertFalse(legacy.exists());
+          assertEquals(time, new File(dir, "coverage1.xml.gz").lastModified());
+
+          FilePath[] reports = CocoEmmaBuildAction.getEmmaReports(dir);
+          assertEquals(2, reports.length);
+          assertTrue(ReportSnapshot.isUpToDate(snapshot, reports));
+          CocoEmmaBuildAction r = CocoEmmaBuildAction.load(null, null, new EmmaHealthReportThresholds(), reports);
+          assertRatio(r.line, 8355.3f, 14828);
+      } finally {
+          new FilePath(builds).deleteRecursive();
+      }
+  }
+
+  public void testReportCacheEvictsLeastRecentlyUsed() throws Exception {
+      EmmaHealthReportThresholds thresholds = new EmmaHealthReportThresholds(30, 90, 25, 80, 20, 70, 15, 60,20,70,21,71,22,72,23,73);
+      CoverageReport r1 = new CoverageReport(null, getClass().getResourceAsStream("coco1.xml"));
+      CoverageReport r2 = new CoverageReport(null, getClass().getResourceAsStream("coco2.xml"));
+      assertTrue(r1.getEstimatedSize() > 0);
+      CocoEmmaBuildAction a1 = CocoEmmaBuildAction.load(null, null, thresholds, getClass().getResourceAsStream("coco1.xml"));
+      CocoEmmaBuildAction a2 = CocoEmmaBuildAction.load(null, null, thresholds, getClass().getResourceAsStream("coco2.xml"));
+
+      ReportCache cache = new ReportCache(r1.getEstimatedSize() + r2.getEstimatedSize() - 1);
+      assertNull(cache.get(a1));
+      cache.put(a1, r1);
+      assertSame(r1, cache.get(a1));
+      cache.put(a2, r2);
+      assertNull(cache.get(a1));
+      assertSame(r2, cache.get(a2));
+      assertEquals(1, cache.getCount());
+      assertEquals(r2.getEstimatedSize(), cache.getSize());
+      assertEquals(2, cache.getHits());
+      assertEquals(2, cache.getMisses());
+      assertEquals(1, cache.getEvictions());
+
+      cache.remove(a2);
+      assertEquals(0, cache.getCount());
+      assertEquals(0, cache.getSize());
+  }
+
+  public void testRecentJobsAreKeptInViewOrder() throws Exception {
+      ReportWarmer.RecentJobs jobs = new ReportWarmer.RecentJobs(2);
+      assertTrue(jobs.add("a"));
+      assertTrue(jobs.add("b"));
+      assertFalse(jobs.add("b"));
+      assertTrue(jobs.add("a"));
+      assertTrue(jobs.add("c"));
+      assertEquals(Arrays.asList("c", "a"), jobs.list());
+
+      File file = File.createTempFile("cocoemma", ".xml");
+      try {
+          jobs.save(new XmlFile(file));
+          ReportWarmer.RecentJobs copy = new ReportWarmer.RecentJobs(2);
+          copy.add("d");
+          copy.load(new XmlFile(file));
+          assertEquals(Arrays.asList("d", "c"), copy.list());
+      } finally {
+          file.delete();
+      }
+  }
 }
@@ -0,0 +1,30 @@
+package hudson.plugins.cocoemma;
+
+import junit.framework.TestCase;
+
+/**
+ * JUnit test for {@link GraphCache}
+ */
+public class GraphCacheTest extends TestCase {
+
+    public void testInvalidatedPerJob() throws Exception {
+        GraphCache cache = new GraphCache(2);
+        String a1 = GraphCache.key("a", 1, "CoverageReport:", "500x200", false);
+        String a2 = GraphCache.key("a", 2, "CoverageReport:", "500x200", false);
+        String ab = GraphCache.key("ab", 1, "CoverageReport:", "500x200", false);
+        GraphCache.Content image = new GraphCache.Content(new byte[] {1, 2, 3}, 1234567, "image/png");
+        assertEquals(1234000, image.lastModified);
+        assertEquals(image.etag, new GraphCache.Content(new byte[] {1, 2, 3}, 2345678, "image/png").etag);
+
+        cache.put(a1, image);
+        cache.put(a2, image);
+        assertSame(image, cache.get(a1));
+        cache.put(ab, image);
+        assertNull(cache.get(a2));
+
+        cache.invalidate("a");
+        assertNull(cache.get(a1));
+        assertSame(image, cache.get(ab));
+        assertEquals(1, cache.size());
+    }
+}
@@ -1,5 +1,8 @@
 package hudson.plugins.cocoemma;
 
+import java.lang.management.ManagementFactory;
+import java.nio.CharBuffer;
+
 /**
  * JUnit test for {@link Ratio}
  */
@@ -30,4 +33,73 @@ public class RatioTest extends AbstractEmmaTestBase {
         r.addValue("X% (1,3/2)");
         assertRatio(r, 2.6f, 4.0f);
     }
+
+    public void testAddValueFromCharSequence() throws Exception {
+        Ratio r = new Ratio();
+        assertFalse(r.isInitialized());
+        r.addValue(new StringBuilder("65%  (1345/2061)"));
+        assertTrue(r.isInitialized());
+        assertRatio(r, 1345f, 2061f);
+        r.addValue(CharBuffer.wrap("63%  (8346,3/13135)".toCharArray()));
+        assertRatio(r, 9691.3f, 15196f);
+        r = new Ratio();
+        r.addValue("X% ( 1.5 / 1e1 )");
+        assertRatio(r, 1.5f, 10f);
+    }
+
+    /**
+     * Counts above 2^24 used to be lost when summed as floats.
+     */
+    public void testLargeCountsAreExact() throws Exception {
+        Ratio r = Ratio.parseValue("50% (16777216/33554432)");
+        r.addValue("100% (1/1)");
+        assertEquals("16777217/33554433", r.toString());
+        r.addValue("0% (0/1,0)");
+        assertEquals("16777217/33554434", r.toString());
+
+        Ratio big = Ratio.parseValue("100% (4000000000/4000000000)");
+        for (int i = 0; i < 1000; i++) {
+            big.addValue("0% (0/1)");
+        }
+        assertEquals("4000000000/4000001000", big.toString());
+        assertEquals(99.999975f, big.getPercentageFloat(false), 0.000001f);
+    }
+
+    public void testFractionsAreKeptApart() throws Exception {
+        Ratio r = Ratio.parseValue("63% (8346,3/13135)");
+        r.addValue("50% (1/2)");
+        assertRatio(r, 8347.3f, 13137f);
+        assertEquals("8347.3/13137", r.toString());
+        assertEquals(new Ratio(8347.3f, 13137f), new Ratio(8347.3f, 13137f));
+    }
+
+    /**
+     * Micro benchmark checking that {@link Ratio#addValue(CharSequence)} does not
+     * allocate: the values are scanned in place.
+     */
+    public void testAddValueDoesNotAllocate() throws Exception {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return; // allocation counters are not available on this JVM
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        if (!threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled()) {
+            return;
+        }
+        String[] values = { "52% (52/100)", "63%  (8346,3/13135)", "0%   (0/3012)", "100% (1.5/1.5)" };
+        Ratio r = new Ratio();
+        // warm up, so that the measure is not polluted by class loading and compilation
+        for (int i = 0; i < 200000; i++) {
+            r.addValue(values[i & 3]);
+        }
+        final int calls = 1000000;
+        long tid = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(tid);
+        for (int i = 0; i < calls; i++) {
+            r.addValue(values[i & 3]);
+        }
+        long allocated = threads.getThreadAllocatedBytes(tid) - before;
+        assertTrue("addValue() allocated " + allocated + " bytes for " + calls + " calls", allocated < calls / 100);
+        assertTrue(r.isInitialized());
+    }
 }
@@ -0,0 +1,46 @@
+package hudson.plugins.cocoemma;
+
+import junit.framework.TestCase;
+
+/**
+ * JUnit test for {@link TrendTable}
+ */
+public class TrendTableTest extends TestCase {
+
+    public void testJson() throws Exception {
+        TrendTable<Integer> trend = new TrendTable<Integer>();
+        assertEquals("{\"labels\":[],\"series\":[]}", trend.toJson());
+        trend.add(50f, "class", 2);
+        trend.add(25.5f, "class", 1);
+        trend.add(Float.NaN, "line", 1);
+        trend.add(10, "a \"b\"</script>", 2);
+        assertEquals("{\"labels\":[\"1\",\"2\"],\"series\":["
+                + "{\"name\":\"class\",\"values\":[25.5,50.0]},"
+                + "{\"name\":\"line\",\"values\":[null,null]},"
+                + "{\"name\":\"a \\\"b\\\"\\u003c/script>\",\"values\":[null,10.0]}]}",
+                trend.toJson());
+    }
+
+    public void testDownsampleKeepsMinAndMax() throws Exception {
+        TrendTable<Integer> trend = new TrendTable<Integer>();
+        for (int i = 0; i < 1000; i++) {
+            trend.add(i == 300 ? 0 : i == 310 ? 100 : 50, "line", i);
+        }
+        assertSame(trend, trend.downsample(1000));
+        TrendTable<Integer> small = trend.downsample(10);
+        // 5 buckets of 200 builds, the extremes stay at their builds, a flat bucket keeps a single point
+        assertEquals("{\"labels\":[\"0\",\"300\",\"310\",\"400\",\"600\",\"800\"],"
+                + "\"series\":[{\"name\":\"line\",\"values\":[50.0,0.0,100.0,50.0,50.0,50.0]}]}", small.toJson());
+
+        // the other series get their values at the kept columns
+        trend.add(75, "class", 310);
+        for (int i = 0; i < 1000; i++) {
+            trend.add(i == 500 ? 10 : 20, "method", i);
+        }
+        small = trend.downsample(10);
+        assertEquals("{\"labels\":[\"0\",\"200\",\"300\",\"310\",\"400\",\"500\",\"600\",\"800\"],"
+                + "\"series\":[{\"name\":\"line\",\"values\":[50.0,50.0,0.0,100.0,50.0,50.0,50.0,50.0]},"
+                + "{\"name\":\"class\",\"values\":[null,null,null,75.0,null,null,null,null]},"
+                + "{\"name\":\"method\",\"values\":[20.0,20.0,20.0,20.0,20.0,10.0,20.0,20.0]}]}", small.toJson());
+    }
+}
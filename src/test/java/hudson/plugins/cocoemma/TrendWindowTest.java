@@ -0,0 +1,18 @@
+package hudson.plugins.cocoemma;
+
+import junit.framework.TestCase;
+
+/**
+ * JUnit test for {@link TrendWindow}
+ */
+public class TrendWindowTest extends TestCase {
+
+    public void testContains() throws Exception {
+        TrendWindow window = new TrendWindow(2, 10);
+        assertTrue(window.contains(12, 0));
+        assertTrue(window.contains(10, 1));
+        assertFalse(window.contains(11, 2));
+        assertFalse(window.contains(9, 0));
+        assertEquals(TrendWindow.MAX_BUILDS, new TrendWindow(Integer.MAX_VALUE, 0).builds);
+    }
+}
@@ -0,0 +1,50 @@
+package hudson.plugins.cocoemma.portlet;
+
+import hudson.plugins.cocoemma.CoverageMetric;
+
+import java.io.File;
+import java.util.SortedMap;
+
+import junit.framework.TestCase;
+
+public class DailyCoverageTest extends TestCase {
+
+    private static float[] coverages(float value) {
+        float[] c = new float[CoverageMetric.count()];
+        c[CoverageMetric.LINE.ordinal()] = value;
+        return c;
+    }
+
+    public void testLastBuildOfTheDayIsKeptAndSaved() throws Exception {
+        DailyCoverage d = new DailyCoverage();
+        d.record(100, 1, coverages(10));
+        d.record(100, 3, coverages(30));
+        d.record(100, 2, coverages(20)); // completes after #3
+        d.record(101, 4, coverages(40));
+        d.record(103, 5, coverages(50));
+
+        SortedMap<Long, DailyCoverage.Day> days = d.between(100, 103);
+        assertEquals(2, days.size());
+        assertEquals(4, days.get(101L).build);
+        assertEquals(5, days.get(103L).build);
+        assertEquals(3, d.between(99, 100).get(100L).build);
+
+        assertFalse(d.remove(101, 3));
+        assertTrue(d.remove(101, 4));
+        assertTrue(d.between(100, 102).isEmpty());
+
+        File f = File.createTempFile("daily", ".dat");
+        try {
+            d.save(f);
+            DailyCoverage read = new DailyCoverage();
+            read.load(f);
+            days = read.between(0, Long.MAX_VALUE);
+            assertEquals(2, days.size());
+            assertEquals(3, days.get(100L).build);
+            assertEquals(30f, days.get(100L).coverages[CoverageMetric.LINE.ordinal()], 0f);
+            assertEquals(50f, days.get(103L).coverages[CoverageMetric.LINE.ordinal()], 0f);
+        } finally {
+            f.delete();
+        }
+    }
+}